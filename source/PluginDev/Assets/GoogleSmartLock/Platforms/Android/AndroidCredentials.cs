@@ -16,6 +16,8 @@
 
 using UnityEngine;
 using System;
+using System.Collections.Generic;
+using System.Text;
 
 #if UNITY_ANDROID
 namespace Google.SmartLock.Platforms.Android
@@ -30,8 +32,108 @@ namespace Google.SmartLock.Platforms.Android
         private const string SupportActivityClassname =
             "com.google.smartlocksupport.SmartLockSupportActivity";
 
+        // The layout written by the Java CompletionQueue, in the native byte order.
+        private const int CompletionHeaderSize = 16;
+        private const int CompletionRecordHeaderSize = 16;
+
         private AndroidJavaClass supportActivityClass;
 
+        // Global reference to the Java array the completion buffer is copied to, or
+        // IntPtr.Zero while the results are delivered to a LoadCallback.
+        private IntPtr completionArray = IntPtr.Zero;
+        private IntPtr pollMethodId = IntPtr.Zero;
+        private long lastRequestId;
+        private Dictionary<long, Action<Status, ICredential>> pendingCallbacks =
+            new Dictionary<long, Action<Status, ICredential>>();
+
+        /// <summary>
+        /// Delivers the results of Load, Save and Delete through the completion buffer of the
+        /// support library, instead of one JNI call into a LoadCallback for each result.  The
+        /// callbacks are then invoked by PollCompletions(), which must be called once per frame,
+        /// for example from the Update() of a MonoBehaviour.
+        /// </summary>
+        /// <param name="bufferSize">Size of the buffer in bytes, at least 1024.</param>
+        public void EnableCompletionQueue(int bufferSize)
+        {
+            if (completionArray != IntPtr.Zero)
+            {
+                return;
+            }
+
+            AndroidJavaClass supportClass = GetSupportClass();
+            pollMethodId = AndroidJNI.GetStaticMethodID(supportClass.GetRawClass(),
+                "pollCompletions", "([B)I");
+            if (pollMethodId.Equals(IntPtr.Zero))
+            {
+                Debug.LogError("Cannot find method pollCompletions in java support class");
+                return;
+            }
+
+            using (AndroidJavaClass byteBufferClass = new AndroidJavaClass("java.nio.ByteBuffer"))
+            {
+                AndroidJavaObject buffer =
+                    byteBufferClass.CallStatic<AndroidJavaObject>("allocateDirect", bufferSize);
+                supportClass.CallStatic("setCompletionBuffer", buffer);
+            }
+
+            IntPtr array = AndroidJNI.ToByteArray(new byte[bufferSize]);
+            completionArray = AndroidJNI.NewGlobalRef(array);
+            AndroidJNI.DeleteLocalRef(array);
+        }
+
+        /// <summary>
+        /// Invokes the callbacks of the operations completed since the previous call.  The
+        /// records are copied from the completion buffer with one JNI call for the whole batch.
+        /// </summary>
+        /// <returns>The number of callbacks invoked.</returns>
+        public int PollCompletions()
+        {
+            if (completionArray == IntPtr.Zero)
+            {
+                return 0;
+            }
+
+            jvalue[] jArgs = new jvalue[1];
+            jArgs[0].l = completionArray;
+            int count = AndroidJNI.CallStaticIntMethod(GetSupportClass().GetRawClass(),
+                            pollMethodId, jArgs);
+            if (count == 0)
+            {
+                return 0;
+            }
+
+            byte[] bytes = AndroidJNI.FromByteArray(completionArray);
+            int position = BitConverter.ToInt32(bytes, 0);
+            for (int i = 0; i < count; i++)
+            {
+                // A length of 0, or no room for a record, means the next one is at the start.
+                if (position + CompletionRecordHeaderSize > bytes.Length ||
+                    BitConverter.ToInt32(bytes, position) == 0)
+                {
+                    position = CompletionHeaderSize;
+                }
+                int length = BitConverter.ToInt32(bytes, position);
+                int code = BitConverter.ToInt32(bytes, position + 4);
+                long requestId = BitConverter.ToInt64(bytes, position + 8);
+                int next = position + CompletionRecordHeaderSize;
+                string id = ReadString(bytes, ref next);
+                string password = ReadString(bytes, ref next);
+                string name = ReadString(bytes, ref next);
+                string accountType = ReadString(bytes, ref next);
+                string profilePictureURL = ReadString(bytes, ref next);
+                position += length;
+
+                Action<Status, ICredential> callback;
+                if (pendingCallbacks.TryGetValue(requestId, out callback))
+                {
+                    pendingCallbacks.Remove(requestId);
+                    LoadCallback.Deliver(callback, code, id, password, name, accountType,
+                        profilePictureURL);
+                }
+            }
+            return count;
+        }
+
         #region ISmartLockCredentialsImpl implementation
 
         /// <see cref="ISmartLockCredentialsImpl.Load"/>
@@ -53,6 +155,14 @@ namespace Google.SmartLock.Platforms.Android
                 return;
             }
 
+            if (completionArray != IntPtr.Zero)
+            {
+                StartQueued("doLoadQueued",
+                    "(Landroid/app/Activity;JJI[Ljava/lang/String;)J",
+                    callback, unityActivity, accountTypes);
+                return;
+            }
+
             IntPtr methodId = AndroidJNI.GetStaticMethodID(supportClass.GetRawClass(),
                                   "doLoad",
                                   "(Landroid/app/Activity;" +
@@ -99,6 +209,20 @@ namespace Google.SmartLock.Platforms.Android
                 return;
             }
 
+            if (completionArray != IntPtr.Zero)
+            {
+                StartQueued("doSaveQueued",
+                    "(Landroid/app/Activity;JJI" +
+                    "Ljava/lang/String;" +
+                    "Ljava/lang/String;" +
+                    "Ljava/lang/String;" +
+                    "Ljava/lang/String;" +
+                    "Ljava/lang/String;)J",
+                    callback, unityActivity, credential.ID, credential.Password,
+                    credential.AccountType, credential.Name, credential.ProfilePictureURL);
+                return;
+            }
+
             IntPtr methodId = AndroidJNI.GetStaticMethodID(supportClass.GetRawClass(),
                                   "doSave",
                                   "(Landroid/app/Activity;" +
@@ -152,6 +276,18 @@ namespace Google.SmartLock.Platforms.Android
                 return;
             }
 
+            if (completionArray != IntPtr.Zero)
+            {
+                StartQueued("doDeleteQueued",
+                    "(Landroid/app/Activity;JJI" +
+                    "Ljava/lang/String;" +
+                    "Ljava/lang/String;" +
+                    "Ljava/lang/String;)J",
+                    callback, unityActivity, credential.ID, credential.Password,
+                    credential.AccountType);
+                return;
+            }
+
             IntPtr methodId = AndroidJNI.GetStaticMethodID(supportClass.GetRawClass(),
                                   "doDelete",
                                   "(Landroid/app/Activity;" +
@@ -184,6 +320,66 @@ namespace Google.SmartLock.Platforms.Android
 
         #endregion
 
+        /// <summary>
+        /// Starts an operation whose result is written to the completion buffer.  The
+        /// arguments after the activity follow the request id, the default timeout and the
+        /// default number of retries.
+        /// </summary>
+        /// <param name="method">Name of the static method.</param>
+        /// <param name="signature">JNI signature of the method.</param>
+        /// <param name="callback">Callback invoked by PollCompletions().</param>
+        /// <param name="unityActivity">Unity activity.</param>
+        /// <param name="args">The remaining arguments of the method.</param>
+        private void StartQueued(string method, string signature,
+                                 Action<Status, ICredential> callback,
+                                 AndroidJavaObject unityActivity, params object[] args)
+        {
+            AndroidJavaClass supportClass = GetSupportClass();
+            IntPtr methodId = AndroidJNI.GetStaticMethodID(supportClass.GetRawClass(),
+                                  method, signature);
+            if (methodId.Equals(IntPtr.Zero))
+            {
+                Debug.LogError("Cannot find method " + method + " in java support class");
+                callback(Status.Error, null);
+                return;
+            }
+
+            long requestId = ++lastRequestId;
+            pendingCallbacks[requestId] = callback;
+
+            object[] objectArray = new object[4 + args.Length];
+            objectArray[0] = unityActivity;
+            objectArray[1] = requestId;
+            objectArray[2] = 0L;
+            objectArray[3] = -1;
+            Array.Copy(args, 0, objectArray, 4, args.Length);
+            jvalue[] jArgs = AndroidJNIHelper.CreateJNIArgArray(objectArray);
+
+            AndroidJNI.CallStaticLongMethod(supportClass.GetRawClass(), methodId, jArgs);
+
+            Debug.Log("Done calling " + method);
+        }
+
+        /// <summary>
+        /// Reads a string of a completion record: an int length, -1 for null, followed by
+        /// that many bytes of UTF-8.
+        /// </summary>
+        /// <returns>The string.</returns>
+        /// <param name="bytes">Copy of the completion buffer.</param>
+        /// <param name="position">Offset of the string, moved past it.</param>
+        private static string ReadString(byte[] bytes, ref int position)
+        {
+            int length = BitConverter.ToInt32(bytes, position);
+            position += 4;
+            if (length < 0)
+            {
+                return null;
+            }
+            string value = Encoding.UTF8.GetString(bytes, position, length);
+            position += length;
+            return value;
+        }
+
         /// <summary>
         /// Gets the unity activity.
         /// </summary>
@@ -235,7 +431,17 @@ namespace Google.SmartLock.Platforms.Android
             void OnResult(Int32 code, String id, String password, String name,
                           String accountType, String profilePictureURL)
             {
-                if ((Status)code == Status.Success)
+                Deliver(callback, code, id, password, name, accountType, profilePictureURL);
+            }
+
+            /// <summary>
+            /// Invokes the callback with a credential if the code is a success.
+            /// </summary>
+            internal static void Deliver(Action<Status, ICredential> callback, int code,
+                                         string id, string password, string name,
+                                         string accountType, string profilePictureURL)
+            {
+                if ((Status)code == Status.Success || (Status)code == Status.SuccessCached)
                 {
                     ICredential cred = new Credential(id, accountType, name, password,
                                            profilePictureURL);
@@ -21,6 +21,8 @@ namespace Google.SmartLock
     /// </summary>
     public enum Status
     {
+        Replaced = -3,
+        TooManyOperations = -2,
         SuccessCached = -1,
         Success = 0,
         ServiceMissing = 1,
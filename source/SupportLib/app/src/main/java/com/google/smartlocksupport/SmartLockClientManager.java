@@ -0,0 +1,453 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import android.app.Activity;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.gms.auth.api.Auth;
+import com.google.android.gms.auth.api.credentials.Credential;
+import com.google.android.gms.auth.api.credentials.CredentialRequest;
+import com.google.android.gms.auth.api.credentials.CredentialRequestResult;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import java.util.ArrayList;
+
+/**
+ * SmartLockClientManager owns the single GoogleApiClient used by the process to call the
+ * SmartLock for Credentials API.  The client is built with the application context, connected
+ * the first time an operation needs it, and then kept connected for the life of the process.
+ * <p/>
+ * Operations that complete without user interaction (auto sign-in loads, saves and deletes that
+ * need no resolution) run entirely here, without an activity.  Only when a Status has a
+ * resolution is the invisible SmartLockSupportActivity started to call startResolutionForResult.
+ * <p/>
+ * The client and the pending operation queue are only touched on the main thread.  The entry
+ * points post to the main thread so they can be called from any thread (such as the Unity thread).
+ */
+class SmartLockClientManager implements GoogleApiClient.ConnectionCallbacks,
+        GoogleApiClient.OnConnectionFailedListener {
+
+    private static final String TAG = "SmartLockClientMgr";
+
+    // Jittered backoff used when reconnecting after the connection is suspended.
+    private static final RetryPolicy RECONNECT_POLICY = new RetryPolicy(0, 250, 30000);
+
+    private static SmartLockClientManager sInstance;
+
+    private final GoogleApiClient mCredentialsApiClient;
+    private final Handler mMainHandler;
+
+    // Operations waiting for the client to connect.
+    private final ArrayList<Operation> mPendingOperations = new ArrayList<>();
+    private int mReconnectAttempts;
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            connectIfNeeded();
+        }
+    };
+
+    /**
+     * Returns the process-wide client manager, creating it on first use.
+     *
+     * @param context - any context, only the application context is retained.
+     */
+    static synchronized SmartLockClientManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SmartLockClientManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SmartLockClientManager(Context appContext) {
+        mMainHandler = new Handler(Looper.getMainLooper());
+        // This is a very simple GoogleApiClient that only connects to the Auth.CREDENTIALS_API,
+        // which does not require the user to go through the sign-in flow before connecting.
+        mCredentialsApiClient = new GoogleApiClient.Builder(appContext)
+                .addConnectionCallbacks(this)
+                .addOnConnectionFailedListener(this)
+                .addApi(Auth.CREDENTIALS_API)
+                .build();
+    }
+
+    /**
+     * Loads the credential for the given account types.
+     *
+     * @param parentActivity - the activity used to start a resolution, if one is needed.
+     * @param responseHandlerKey - the key of the response handler to call back when complete.
+     * @param accountTypes - the array of account types to limit the credential returned.
+     */
+    void load(final Activity parentActivity, long responseHandlerKey,
+              final String... accountTypes) {
+        execute(new Operation(responseHandlerKey) {
+            @Override
+            public void run() {
+                loadCredentials(parentActivity, mResponseHandlerKey, accountTypes);
+            }
+        });
+    }
+
+    /**
+     * Loads the credential for the given account types if that needs no user interaction.  If
+     * the load needs a resolution, the operation completes with the status code instead.
+     *
+     * @param responseHandlerKey - the key of the response handler to call back when complete.
+     * @param accountTypes - the array of account types to limit the credential returned.
+     */
+    void prefetch(long responseHandlerKey, final String... accountTypes) {
+        execute(new Operation(responseHandlerKey) {
+            @Override
+            public void run() {
+                loadCredentials(null, mResponseHandlerKey, accountTypes);
+            }
+        });
+    }
+
+    /**
+     * Saves the given credential.
+     *
+     * @param parentActivity - the activity used to start a resolution, if one is needed.
+     * @param responseHandlerKey - the key of the response handler to call back when complete.
+     * @param id - the credential id
+     * @param password - the credential password.
+     * @param accountType - the account type
+     * @param name - the credential display name.
+     * @param profilePictureURL - the profile picture.
+     */
+    void save(final Activity parentActivity, long responseHandlerKey,
+              final String id,
+              final String password,
+              final String accountType,
+              final String name,
+              final String profilePictureURL) {
+        execute(new Operation(responseHandlerKey) {
+            @Override
+            public void run() {
+                saveCredential(parentActivity, mResponseHandlerKey, id, password, accountType,
+                        name, profilePictureURL);
+            }
+        });
+    }
+
+    /**
+     * Deletes the given credential.
+     *
+     * @param parentActivity - the activity used to start a resolution, if one is needed.
+     * @param responseHandlerKey - the key of the response handler to call back when complete.
+     * @param id - the credential id
+     * @param password - the credential password.
+     * @param accountType - the account type
+     */
+    void delete(final Activity parentActivity, long responseHandlerKey,
+                final String id,
+                final String password,
+                final String accountType) {
+        execute(new Operation(responseHandlerKey) {
+            @Override
+            public void run() {
+                deleteCredential(parentActivity, mResponseHandlerKey, id, password, accountType);
+            }
+        });
+    }
+
+    /**
+     * Runs the operation on the main thread as soon as the client is connected.
+     */
+    private void execute(final Operation operation) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCredentialsApiClient.isConnected()) {
+                    runIfWanted(operation);
+                } else {
+                    OperationTracer.mark(operation.mResponseHandlerKey,
+                            SmartLockSupportTraceListener.PHASE_CONNECT);
+                    TraceBuffer.record(operation.mResponseHandlerKey, TraceBuffer.EVENT_QUEUED);
+                    mPendingOperations.add(operation);
+                    connectIfNeeded();
+                }
+            }
+        });
+    }
+
+    private void connectIfNeeded() {
+        if (!mCredentialsApiClient.isConnected() && !mCredentialsApiClient.isConnecting()) {
+            TraceBuffer.record(0, TraceBuffer.EVENT_CONNECTING);
+            mCredentialsApiClient.connect();
+        }
+    }
+
+    @Override
+    public void onConnected(Bundle bundle) {
+        TraceBuffer.record(0, TraceBuffer.EVENT_CONNECTED, mPendingOperations.size());
+        mReconnectAttempts = 0;
+        mMainHandler.removeCallbacks(mReconnectRunnable);
+
+        // Copy the queue first, an operation may queue another one while running.
+        ArrayList<Operation> operations = new ArrayList<>(mPendingOperations);
+        mPendingOperations.clear();
+        for (Operation operation : operations) {
+            runIfWanted(operation);
+        }
+    }
+
+    /**
+     * Runs the operation unless it timed out or was canceled while waiting to run, or its
+     * request was already issued.
+     */
+    private static void runIfWanted(Operation operation) {
+        if (!SmartLockSupportActivity.isWaitingForResult(operation.mResponseHandlerKey)) {
+            TraceBuffer.record(operation.mResponseHandlerKey, TraceBuffer.EVENT_SKIPPED);
+            // Nobody gets this result, it only ends the operation.
+            SmartLockSupportActivity.deliverResult(operation.mResponseHandlerKey,
+                    CommonStatusCodes.CANCELED, null, null, null, null, null);
+        } else if (SmartLockSupportActivity.beginRequest(operation.mResponseHandlerKey)) {
+            OperationTracer.mark(operation.mResponseHandlerKey,
+                    SmartLockSupportTraceListener.PHASE_REQUEST);
+            TraceBuffer.record(operation.mResponseHandlerKey, TraceBuffer.EVENT_REQUEST);
+            operation.run();
+        }
+    }
+
+    @Override
+    public void onConnectionSuspended(int cause) {
+        long delay = RECONNECT_POLICY.delayMillis(mReconnectAttempts++);
+        TraceBuffer.record(0, TraceBuffer.EVENT_CONNECTION_SUSPENDED, cause);
+        mMainHandler.removeCallbacks(mReconnectRunnable);
+        mMainHandler.postDelayed(mReconnectRunnable, delay);
+    }
+
+    @Override
+    public void onConnectionFailed(ConnectionResult connectionResult) {
+        TraceBuffer.record(0, TraceBuffer.EVENT_CONNECTION_FAILED,
+                connectionResult.getErrorCode());
+
+        // Nothing can run without a connection, so fail everything that is waiting, and the
+        // next operation will attempt to connect again.  The error code is a ConnectionResult
+        // code, whose values mean other things as status codes, so it is only traced.
+        ArrayList<Operation> operations = new ArrayList<>(mPendingOperations);
+        mPendingOperations.clear();
+        for (Operation operation : operations) {
+            SmartLockSupportActivity.deliverResult(operation.mResponseHandlerKey,
+                    CommonStatusCodes.API_NOT_CONNECTED, null, null, null, null, null);
+        }
+    }
+
+    /**
+     * Attempts to read the user's saved Credentials from the Credentials API.  Without a parent
+     * activity, a Status that needs a resolution is reported instead of resolved.
+     * <p/>
+     * <b>Note:</b> Make sure not to load credentials automatically if the user has clicked
+     * a "sign out" button in your application in order to avoid a sign-in loop.
+     */
+    private void loadCredentials(final Activity parentActivity, final long responseHandlerKey,
+                                 String... accountTypes) {
+        CredentialRequest request = new CredentialRequest.Builder()
+                .setSupportsPasswordLogin(true)
+                .setAccountTypes(accountTypes)
+                .build();
+
+        Auth.CredentialsApi.request(mCredentialsApiClient, request).setResultCallback(
+                new ResultCallback<CredentialRequestResult>() {
+                    @Override
+                    public void onResult(CredentialRequestResult credentialRequestResult) {
+                        OperationTracer.mark(responseHandlerKey, SmartLockSupportTraceListener.PHASE_API_RESULT);
+                        TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_API_RESULT,
+                                credentialRequestResult.getStatus().getStatusCode());
+                        if (credentialRequestResult.getStatus().isSuccess()) {
+                            // Successfully read the credential without any user interaction, this
+                            // means there was only a single credential and the user has auto
+                            // sign-in enabled.  Prefetches are not counted, nobody asked for
+                            // them.
+                            if (parentActivity != null) {
+                                OperationMetrics.countCompletion(
+                                        OperationMetrics.COMPLETION_SILENT_SUCCESS);
+                            }
+                            deliverCredential(responseHandlerKey,
+                                    credentialRequestResult.getCredential());
+                        } else if (parentActivity == null) {
+                            // A prefetch, which never shows UI.
+                            SmartLockSupportActivity.deliverResult(responseHandlerKey,
+                                    credentialRequestResult.getStatus().getStatusCode(),
+                                    null, null, null, null, null);
+                        } else {
+                            // This is most likely the case where the user has multiple saved
+                            // credentials and needs to pick one.
+                            resolveResult(parentActivity, credentialRequestResult.getStatus(),
+                                    SmartLockSupportActivity.RC_READ, responseHandlerKey);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Save the given credential information.
+     */
+    private void saveCredential(final Activity parentActivity, final long responseHandlerKey,
+                                String id,
+                                String password,
+                                String accountType,
+                                String name,
+                                String profilePictureURL) {
+        try {
+            Credential.Builder builder = new Credential.Builder(id);
+
+            if (password != null) {
+                builder.setPassword(password);
+            }
+            if (accountType != null && !accountType.isEmpty()) {
+                builder.setAccountType(accountType);
+            }
+            if (name != null) {
+                builder.setName(name);
+            }
+            if (profilePictureURL != null) {
+                builder.setProfilePictureUri(Uri.parse(profilePictureURL));
+            }
+
+            final Credential credential = builder.build();
+
+            // NOTE: this method unconditionally saves the Credential built, even if all the fields
+            // are blank or it is invalid in some other way.  In a real application you should contact
+            // your app's back end and determine that the credential is valid before saving.
+            Auth.CredentialsApi.save(mCredentialsApiClient, credential).setResultCallback(
+                    new ResultCallback<Status>() {
+                        @Override
+                        public void onResult(Status status) {
+                            OperationTracer.mark(responseHandlerKey, SmartLockSupportTraceListener.PHASE_API_RESULT);
+                            TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_API_RESULT,
+                                    status.getStatusCode());
+                            if (status.isSuccess()) {
+                                OperationMetrics.countCompletion(
+                                        OperationMetrics.COMPLETION_SILENT_SUCCESS);
+                                deliverCredential(responseHandlerKey, credential);
+                            } else {
+                                resolveResult(parentActivity, status,
+                                        SmartLockSupportActivity.RC_SAVE, responseHandlerKey);
+                            }
+                        }
+                    });
+        } catch (Throwable t) {
+            if (SupportLog.isLoggable(SupportLog.ERROR)) {
+                SupportLog.e(TAG, "Exception caught: " + t.getMessage());
+            }
+            SmartLockSupportActivity.deliverResult(responseHandlerKey,
+                    CommonStatusCodes.DEVELOPER_ERROR, null, null, null, null, null);
+        }
+    }
+
+    /**
+     * Deletes the credential information.
+     */
+    private void deleteCredential(final Activity parentActivity, final long responseHandlerKey,
+                                  String id,
+                                  String password,
+                                  String accountType) {
+        try {
+            Credential.Builder builder = new Credential.Builder(id);
+
+            if (password != null) {
+                builder.setPassword(password);
+            }
+            if (accountType != null && !accountType.isEmpty()) {
+                builder.setAccountType(accountType);
+            }
+
+            final Credential credential = builder.build();
+
+            Auth.CredentialsApi.delete(mCredentialsApiClient, credential).setResultCallback(
+                    new ResultCallback<Status>() {
+                        @Override
+                        public void onResult(Status status) {
+                            OperationTracer.mark(responseHandlerKey, SmartLockSupportTraceListener.PHASE_API_RESULT);
+                            TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_API_RESULT,
+                                    status.getStatusCode());
+                            if (status.isSuccess()) {
+                                OperationMetrics.countCompletion(OperationMetrics.COMPLETION_SILENT_SUCCESS);
+                                SmartLockSupportActivity.deliverResult(responseHandlerKey,
+                                        status.getStatusCode(), null, null, null, null, null);
+                            } else {
+                                resolveResult(parentActivity, status,
+                                        SmartLockSupportActivity.RC_SAVE, responseHandlerKey);
+                            }
+                        }
+                    });
+        } catch (Throwable t) {
+            if (SupportLog.isLoggable(SupportLog.ERROR)) {
+                SupportLog.e(TAG, "Exception caught: " + t.getMessage());
+            }
+            SmartLockSupportActivity.deliverResult(responseHandlerKey,
+                    CommonStatusCodes.DEVELOPER_ERROR, null, null, null, null, null);
+        }
+    }
+
+    /**
+     * Attempt to resolve a non-successful Status from an asynchronous request.  This is the only
+     * case where an activity is started.
+     *
+     * @param status      the Status to resolve.
+     * @param requestCode the request code to use when starting an Activity for result,
+     */
+    private void resolveResult(Activity parentActivity, Status status, int requestCode,
+                               long responseHandlerKey) {
+        if (status.hasResolution()) {
+            SmartLockSupportActivity.startResolution(parentActivity, responseHandlerKey,
+                    requestCode, status);
+        } else {
+            // Report the real code, so transient errors can be retried.
+            int statusCode = status.getStatusCode();
+            SmartLockSupportActivity.deliverResult(responseHandlerKey,
+                    statusCode != CommonStatusCodes.SUCCESS
+                            ? statusCode : CommonStatusCodes.INTERNAL_ERROR,
+                    null, null, null, null, null);
+        }
+    }
+
+    /**
+     * Calls back the response handler with the contents of the credential.
+     */
+    private static void deliverCredential(long responseHandlerKey, Credential credential) {
+        SmartLockSupportActivity.deliverResult(responseHandlerKey, CommonStatusCodes.SUCCESS,
+                credential.getId(),
+                credential.getPassword(),
+                credential.getName(),
+                credential.getAccountType(),
+                credential.getProfilePictureUri() != null ? credential.getProfilePictureUri().toString() : null);
+    }
+
+    /**
+     * An operation waiting to run on the connected client.  It keeps the response handler key
+     * so the caller can be notified if the client fails to connect.
+     */
+    private abstract static class Operation implements Runnable {
+        final long mResponseHandlerKey;
+
+        Operation(long responseHandlerKey) {
+            mResponseHandlerKey = responseHandlerKey;
+        }
+    }
+}
@@ -17,63 +17,134 @@
 package com.google.smartlocksupport;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender;
-import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
 
-import com.google.android.gms.auth.api.Auth;
 import com.google.android.gms.auth.api.credentials.Credential;
-import com.google.android.gms.auth.api.credentials.CredentialRequest;
-import com.google.android.gms.auth.api.credentials.CredentialRequestResult;
-import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.CommonStatusCodes;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
 
 /**
- * SmartLockSupportActivity is used to launch an invisible activity to
- * handle calling the SmartLock for Credentials API from an external plugin (such as for Unity).
+ * SmartLockSupportActivity is the entry point for calling the SmartLock for Credentials API
+ * from an external plugin (such as for Unity), and the invisible activity used to show any UI
+ * the API needs.
  * The general design is:
  * 1. a static method is called passing the parent activity, the parameters for the API call, and
  * a response handler object.
- * 2. The intent is created and the parameters and operation code are added as extra data to the intent.
- * The handler object is stored in a static hash map.  The key is added to the intent as extra data.
- * 3. The activity is started.  OnStart reads the extra data and performs the requested API calls.
- * 4. When processing is complete (either successfully, or an error) the result handler is invoked.
+ * 2. The handler object is stored in a static registry under a new id and the operation is handed to the
+ * SmartLockClientManager, which runs it on a shared, already connected GoogleApiClient.
+ * 3. If the API returns a Status with a resolution, the Status is queued and this activity is
+ * started, if it is not already running.  It calls startResolutionForResult for each queued
+ * Status in turn, and finishes once the queue has been empty for a short idle timeout, so
+ * resolutions that follow each other (such as picking a credential, then confirming a save)
+ * share one activity.
+ * 4. When processing is complete (either successfully, or an error) the result handler is invoked,
+ * inline or on the thread chosen with setCallbackDelivery() or setCallbackExecutor().
  */
-public class SmartLockSupportActivity extends Activity implements GoogleApiClient.ConnectionCallbacks,
-        GoogleApiClient.OnConnectionFailedListener {
+public class SmartLockSupportActivity extends Activity {
 
     private static final String TAG = "SmartLockSupportActvty";
 
+    // The operations with a resolution when the activity state was saved.
+    private static final String STATE_RESOLUTIONS = "resolutions";
+
     // These are the API calls that can be made.
-    private static final int RC_SAVE = 1;
-    private static final int RC_READ = 3;
-    private static final int RC_DELETE = 4;
+    static final int RC_SAVE = 1;
+    static final int RC_READ = 3;
+    static final int RC_DELETE = 4;
+
+    // Resolutions waiting for the activity, the one it is showing, and the running activity.
+    // Only accessed on the main thread.  They are static so they survive the activity being
+    // recreated.
+    private static final ArrayDeque<Resolution> pendingResolutions = new ArrayDeque<>();
+    private static Resolution currentResolution;
+    private static SmartLockSupportActivity session;
+    private static boolean sessionStarted;
+    private static int nextResolutionSequence;
+    private static final int RESOLUTION_SEQUENCE_MASK = 0xfff;
+
+    // How long the activity stays up with nothing to resolve, so a resolution queued shortly
+    // after the previous one reuses it instead of starting a new activity.
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 500;
+    private static volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MS;
+
+    // Set when the activity finishes because it has nothing left to resolve.
+    private boolean mDrained;
+
+    private final Handler mHandler = new Handler();
+    private final Runnable mFinishWhenIdle = new Runnable() {
+        @Override
+        public void run() {
+            TraceBuffer.record(0, TraceBuffer.EVENT_SESSION_FINISH);
+            sessionStarted = false;
+            mDrained = true;
+            finish();
+        }
+    };
+
+    // Where the response handlers are called, see setCallbackDelivery().
+    public static final int CALLBACKS_INLINE = 0;
+    public static final int CALLBACKS_BACKGROUND_THREAD = 1;
+
+    // What happens to an operation over the caps of configureAdmission().
+    public static final int ADMISSION_QUEUE = AdmissionController.POLICY_QUEUE;
+    public static final int ADMISSION_REJECT = AdmissionController.POLICY_REJECT;
+    public static final int ADMISSION_REPLACE_OLDEST = AdmissionController.POLICY_REPLACE_OLDEST;
+
+    // Started the first time the handlers are delivered on a background thread, and kept after.
+    private static HandlerThread callbackThread;
+    private static Executor callbackThreadExecutor;
+
+    // The queue the doLoadQueued, doSaveQueued and doDeleteQueued results are written to.
+    private static volatile CompletionQueue completionQueue;
+
+    // Answers the operations instead of the Credentials API when set.
+    private static volatile CredentialsEmulator emulator;
+    // The one emulator, created on first use, so its timer thread is never duplicated.
+    private static CredentialsEmulator emulatorInstance;
+
+    // How long a prefetched credential waits for doLoad.
+    private static final long DEFAULT_PREFETCH_HOLD_MS = 30 * 1000;
 
-    // Keys to the extra data in the intent.
-    private static final String OperationKey = "op";
-    private static final String ResponseHandlerKey = "responseHandler";
-    private static final String AccountTypesKey = "accountTypes";
-    private static final String AccountTypeKey = "accountType";
-    private static final String EmailKey = "email";
-    private static final String PasswordKey = "password";
-    private static final String NameKey = "name";
-    private static final String AvatarURLKey = "avatar";
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
 
-    private GoogleApiClient mCredentialsApiClient;
+    // dispatches the operations to the shared client, and holds the registry of callback objects.
+    private static final OperationDispatcher dispatcher =
+            new OperationDispatcher(ResponseHandlerRegistry.DEFAULT_EXPIRY_MS,
+                    new OperationDispatcher.Listener() {
+                        @Override
+                        public void onAbandoned(long operationId) {
+                            abandon(operationId);
+                        }
+                    });
 
-    // static map of callback objects.
-    private static HashMap<String, SmartLockSupportResponseHandler> responseHandlers = new HashMap<>();
+    static {
+        SupportLog.setSink(new SupportLog.Sink() {
+            @Override
+            public void log(int priority, String tag, String message, Throwable t) {
+                Log.println(priority, tag, t != null
+                        ? message + '\n' + Log.getStackTraceString(t) : message);
+            }
+        });
+    }
 
 
     /**
-     * Perform the Load SDK call to load credentials.
+     * Perform the Load SDK call to load credentials.  If the credential cache is enabled and
+     * holds a credential for the account types, the handler is called back before returning with
+     * SUCCESS_CACHE.  If a load for the same account types is already in flight, this call is
+     * attached to it and gets the same result.
      *
      * @param parentActivity  - the activity to be the parent.
      * @param responseHandler - the handler object to call back when complete.
@@ -83,25 +154,97 @@ public class SmartLockSupportActivity extends Activity implements GoogleApiClien
                               SmartLockSupportResponseHandler responseHandler,
                               String... accountTypes
     ) {
-        String responseHandlerKey = null;
-        try {
-            Log.d(TAG, "Called doLoad");
-            Intent intent = new Intent(parentActivity, SmartLockSupportActivity.class);
-            responseHandlerKey = responseHandler.hashCode() + "x" + Long.toHexString(System.currentTimeMillis());
-            responseHandlers.put(responseHandlerKey, responseHandler);
-            intent.putExtra(ResponseHandlerKey, responseHandlerKey)
-                    .putExtra(AccountTypesKey, accountTypes)
-                    .putExtra(OperationKey, RC_READ);
-            Log.d(TAG, "Starting intent!");
-            parentActivity.startActivity(intent);
-        } catch (Throwable t) {
-            Log.e(TAG, "Got a throwable, cannot start activity " + t.getMessage());
-            // if there was a problem starting, just fail.
-            responseHandlers.remove(responseHandlerKey);
-            responseHandler.OnResult(CommonStatusCodes.ERROR, null, null, null, null, null);
-        } finally {
-            Log.d(TAG, "Returning from doLoad");
-        }
+        doLoad(parentActivity, responseHandler, 0, accountTypes);
+    }
+
+    /**
+     * Perform the Load SDK call to load credentials, with a deadline.  If the load has not
+     * completed when the deadline passes, the handler is called with TIMEOUT.
+     *
+     * @param parentActivity  - the activity to be the parent.
+     * @param responseHandler - the handler object to call back when complete.
+     * @param timeoutMillis   - the time the load has to complete, 0 for the default.
+     * @param accountTypes    - the array of account types to limit the credential returned.
+     * @return the operation id to pass to cancel(), or 0 if the handler was already called.
+     */
+    public static long doLoad(Activity parentActivity,
+                              SmartLockSupportResponseHandler responseHandler,
+                              long timeoutMillis,
+                              String... accountTypes
+    ) {
+        return doLoad(parentActivity, responseHandler, timeoutMillis,
+                OperationDispatcher.DEFAULT_RETRIES, accountTypes);
+    }
+
+    /**
+     * Perform the Load SDK call to load credentials, with a deadline and a retry budget.  A load
+     * that fails with a transient error (such as a network error) is retried after a backoff
+     * up to maxRetries times before the handler is called.
+     *
+     * @param parentActivity  - the activity to be the parent.
+     * @param responseHandler - the handler object to call back when complete.
+     * @param timeoutMillis   - the time the load has to complete, 0 for the default.
+     * @param maxRetries      - the number of retries, -1 for the default of setRetryPolicy().
+     * @param accountTypes    - the array of account types to limit the credential returned.
+     * @return the operation id to pass to cancel(), or 0 if the handler was already called.
+     */
+    public static long doLoad(Activity parentActivity,
+                              SmartLockSupportResponseHandler responseHandler,
+                              long timeoutMillis,
+                              int maxRetries,
+                              String... accountTypes
+    ) {
+        return dispatcher.load(backend(parentActivity), responseHandler,
+                timeoutMillis, maxRetries, accountTypes);
+    }
+
+    /**
+     * Perform the Load SDK call to load credentials, returning a handle to the operation instead
+     * of calling back a handler.  The handle can be polled for the result, such as once per
+     * frame, waited for off the main thread, or given listeners.
+     *
+     * @param parentActivity - the activity to be the parent.
+     * @param timeoutMillis  - the time the load has to complete, 0 for the default.
+     * @param maxRetries     - the number of retries, -1 for the default of setRetryPolicy().
+     * @param accountTypes   - the array of account types to limit the credential returned.
+     * @return the handle of the operation, already complete if answered from the cache.
+     */
+    public static SmartLockSupportOperation doLoadAsync(Activity parentActivity,
+                                                        long timeoutMillis,
+                                                        int maxRetries,
+                                                        String... accountTypes) {
+        return dispatcher.loadAsync(backend(parentActivity), timeoutMillis,
+                maxRetries, accountTypes);
+    }
+
+
+    /**
+     * Starts loading the credential for the account types before the first doLoad, such as from
+     * the launcher activity or the Application while the engine starts.  Only a load that needs
+     * no user interaction is kept: its result is held for a short time and the first doLoad for
+     * the same account types completes with it immediately, or waits for it if it is still in
+     * flight.  If the load needs the user to pick a credential, the result is dropped and doLoad
+     * shows the picker as usual.
+     *
+     * @param context      - any context, only the application context is retained.
+     * @param accountTypes - the array of account types to limit the credential returned.
+     */
+    public static void prefetch(Context context, String... accountTypes) {
+        prefetch(context, DEFAULT_PREFETCH_HOLD_MS, accountTypes);
+    }
+
+    /**
+     * Starts loading the credential for the account types before the first doLoad, holding a
+     * result that needs no user interaction for the given time.
+     *
+     * @param context      - any context, only the application context is retained.
+     * @param holdMillis   - how long the result is held for doLoad.
+     * @param accountTypes - the array of account types to limit the credential returned.
+     */
+    public static void prefetch(Context context, long holdMillis, String... accountTypes) {
+        CredentialsBackend backend = emulator;
+        dispatcher.prefetch(backend != null ? backend : new ClientManagerBackend(context, null),
+                holdMillis, accountTypes);
     }
 
 
@@ -124,28 +267,89 @@ public class SmartLockSupportActivity extends Activity implements GoogleApiClien
                               String accountType,
                               String name,
                               String profilePicutureURL) {
-        Log.d(TAG, "Called doSave");
-        String responseHandlerKey = null;
-        try {
-            Intent intent = new Intent(parentActivity, SmartLockSupportActivity.class);
-            responseHandlerKey = responseHandler.hashCode() + "x" + Long.toHexString(System.currentTimeMillis());
-            responseHandlers.put(responseHandlerKey, responseHandler);
-            intent.putExtra(ResponseHandlerKey, responseHandlerKey)
-                    .putExtra(EmailKey, email)
-                    .putExtra(PasswordKey, password)
-                    .putExtra(AccountTypeKey, accountType)
-                    .putExtra(NameKey, name)
-                    .putExtra(AvatarURLKey, profilePicutureURL)
-                    .putExtra(OperationKey, RC_SAVE);
-            parentActivity.startActivity(intent);
-        } catch (Throwable t) {
-            Log.e(TAG, "Got a throwable, cannot start activity " + t.getMessage());
-            // if there was a problem starting, just fail.
-            responseHandlers.remove(responseHandlerKey);
-            responseHandler.OnResult(CommonStatusCodes.ERROR, null, null, null, null, null);
-        } finally {
-            Log.d(TAG, "Returning from doSave");
-        }
+        doSave(parentActivity, responseHandler, 0, email, password, accountType, name,
+                profilePicutureURL);
+    }
+
+    /**
+     * Perform the Save SDK call to store credentials, with a deadline.  If the save has not
+     * completed when the deadline passes, the handler is called with TIMEOUT.
+     *
+     * @param parentActivity  - the activity to be the parent.
+     * @param responseHandler - the handler object to call back when complete.
+     * @param timeoutMillis   - the time the save has to complete, 0 for the default.
+     * @param email           - email or user id for the credential.
+     * @param password        - the password
+     * @param accountType     - the account type of the credential.  null is allowed.
+     * @param name            - the display name of the user.
+     * @param profilePicutureURL - the url for the profile image for the credential.
+     * @return the operation id to pass to cancel(), or 0 if the handler was already called.
+     */
+    public static long doSave(Activity parentActivity, SmartLockSupportResponseHandler responseHandler,
+                              long timeoutMillis,
+                              String email,
+                              String password,
+                              String accountType,
+                              String name,
+                              String profilePicutureURL) {
+        return doSave(parentActivity, responseHandler, timeoutMillis,
+                OperationDispatcher.DEFAULT_RETRIES, email, password, accountType, name,
+                profilePicutureURL);
+    }
+
+    /**
+     * Perform the Save SDK call to store credentials, with a deadline and a retry budget.  A
+     * save that fails with a transient error (such as a network error) is retried after a
+     * backoff up to maxRetries times before the handler is called.
+     *
+     * @param parentActivity  - the activity to be the parent.
+     * @param responseHandler - the handler object to call back when complete.
+     * @param timeoutMillis   - the time the save has to complete, 0 for the default.
+     * @param maxRetries      - the number of retries, -1 for the default of setRetryPolicy().
+     * @param email           - email or user id for the credential.
+     * @param password        - the password
+     * @param accountType     - the account type of the credential.  null is allowed.
+     * @param name            - the display name of the user.
+     * @param profilePicutureURL - the url for the profile image for the credential.
+     * @return the operation id to pass to cancel(), or 0 if the handler was already called.
+     */
+    public static long doSave(Activity parentActivity, SmartLockSupportResponseHandler responseHandler,
+                              long timeoutMillis,
+                              int maxRetries,
+                              String email,
+                              String password,
+                              String accountType,
+                              String name,
+                              String profilePicutureURL) {
+        return dispatcher.save(backend(parentActivity), responseHandler,
+                timeoutMillis, maxRetries, email, password, accountType, name,
+                profilePicutureURL);
+    }
+
+    /**
+     * Perform the Save SDK call to store credentials, returning a handle to the operation
+     * instead of calling back a handler.
+     *
+     * @param parentActivity  - the activity to be the parent.
+     * @param timeoutMillis   - the time the save has to complete, 0 for the default.
+     * @param maxRetries      - the number of retries, -1 for the default of setRetryPolicy().
+     * @param email           - email or user id for the credential.
+     * @param password        - the password
+     * @param accountType     - the account type of the credential.  null is allowed.
+     * @param name            - the display name of the user.
+     * @param profilePicutureURL - the url for the profile image for the credential.
+     * @return the handle of the operation.
+     */
+    public static SmartLockSupportOperation doSaveAsync(Activity parentActivity,
+                                                        long timeoutMillis,
+                                                        int maxRetries,
+                                                        String email,
+                                                        String password,
+                                                        String accountType,
+                                                        String name,
+                                                        String profilePicutureURL) {
+        return dispatcher.saveAsync(backend(parentActivity), timeoutMillis,
+                maxRetries, email, password, accountType, name, profilePicutureURL);
     }
 
 
@@ -162,351 +366,839 @@ public class SmartLockSupportActivity extends Activity implements GoogleApiClien
                                 String email,
                                 String password,
                                 String accountType) {
-        Log.d(TAG, "Called doDelete");
-        String responseHandlerKey = null;
-        try {
-            Intent intent = new Intent(parentActivity, SmartLockSupportActivity.class);
-            responseHandlerKey = responseHandler.hashCode() + "x" + Long.toHexString(System.currentTimeMillis());
-            responseHandlers.put(responseHandlerKey, responseHandler);
-            intent.putExtra(ResponseHandlerKey, responseHandlerKey)
-                    .putExtra(EmailKey, email)
-                    .putExtra(PasswordKey, password)
-                    .putExtra(AccountTypeKey, accountType)
-                    .putExtra(OperationKey, RC_DELETE);
-            parentActivity.startActivity(intent);
-        } catch (Throwable t) {
-            Log.e(TAG, "Got a throwable, cannot start activity " + t.getMessage());
-            // if there was a problem starting, just fail.
-            responseHandlers.remove(responseHandlerKey);
-            responseHandler.OnResult(CommonStatusCodes.ERROR, null, null, null, null, null);
-        } finally {
-            Log.d(TAG, "Returning from doDelete");
+        doDelete(parentActivity, responseHandler, 0, email, password, accountType);
+    }
+
+    /**
+     * Performs the delete SDK call to delete the specfied credential, with a deadline.  If the
+     * delete has not completed when the deadline passes, the handler is called with TIMEOUT.
+     *
+     * @param parentActivity  - the activity to be the parent.
+     * @param responseHandler - the handler object to call back when complete.
+     * @param timeoutMillis   - the time the delete has to complete, 0 for the default.
+     * @param email           - email or user id for the credential.
+     * @param password        - the password
+     * @param accountType     - the account type of the credential.  null is allowed.
+     * @return the operation id to pass to cancel(), or 0 if the handler was already called.
+     */
+    public static long doDelete(Activity parentActivity, SmartLockSupportResponseHandler responseHandler,
+                                long timeoutMillis,
+                                String email,
+                                String password,
+                                String accountType) {
+        return doDelete(parentActivity, responseHandler, timeoutMillis,
+                OperationDispatcher.DEFAULT_RETRIES, email, password, accountType);
+    }
+
+    /**
+     * Performs the delete SDK call to delete the specfied credential, with a deadline and a
+     * retry budget.  A delete that fails with a transient error (such as a network error) is
+     * retried after a backoff up to maxRetries times before the handler is called.
+     *
+     * @param parentActivity  - the activity to be the parent.
+     * @param responseHandler - the handler object to call back when complete.
+     * @param timeoutMillis   - the time the delete has to complete, 0 for the default.
+     * @param maxRetries      - the number of retries, -1 for the default of setRetryPolicy().
+     * @param email           - email or user id for the credential.
+     * @param password        - the password
+     * @param accountType     - the account type of the credential.  null is allowed.
+     * @return the operation id to pass to cancel(), or 0 if the handler was already called.
+     */
+    public static long doDelete(Activity parentActivity, SmartLockSupportResponseHandler responseHandler,
+                                long timeoutMillis,
+                                int maxRetries,
+                                String email,
+                                String password,
+                                String accountType) {
+        return dispatcher.delete(backend(parentActivity), responseHandler,
+                timeoutMillis, maxRetries, email, password, accountType);
+    }
+
+    /**
+     * Performs the delete SDK call to delete the specfied credential, returning a handle to the
+     * operation instead of calling back a handler.
+     *
+     * @param parentActivity  - the activity to be the parent.
+     * @param timeoutMillis   - the time the delete has to complete, 0 for the default.
+     * @param maxRetries      - the number of retries, -1 for the default of setRetryPolicy().
+     * @param email           - email or user id for the credential.
+     * @param password        - the password
+     * @param accountType     - the account type of the credential.  null is allowed.
+     * @return the handle of the operation.
+     */
+    public static SmartLockSupportOperation doDeleteAsync(Activity parentActivity,
+                                                          long timeoutMillis,
+                                                          int maxRetries,
+                                                          String email,
+                                                          String password,
+                                                          String accountType) {
+        return dispatcher.deleteAsync(backend(parentActivity), timeoutMillis,
+                maxRetries, email, password, accountType);
+    }
+
+    /**
+     * Registers the buffer the results of doLoadQueued, doSaveQueued and doDeleteQueued are
+     * written to, instead of calling a response handler for each one.  Call pollCompletions()
+     * once per frame, then read the records it published straight from the buffer memory.  The
+     * layout is described in CompletionQueue: a header with the offsets of the batch, then one
+     * record per result with the request id, the result code and the UTF-8 fields.
+     * Operations already started keep writing to the buffer they were started with.
+     *
+     * @param buffer - a direct buffer of at least 1024 bytes, owned by the library from now on.
+     */
+    public static void setCompletionBuffer(ByteBuffer buffer) {
+        completionQueue = new CompletionQueue(buffer);
+    }
+
+    /**
+     * Publishes the results written to the completion buffer since the previous call, and frees
+     * the batch that call published.
+     *
+     * @return the number of records in the batch.
+     */
+    public static int pollCompletions() {
+        CompletionQueue queue = completionQueue;
+        return queue != null ? queue.poll() : 0;
+    }
+
+    /**
+     * Like pollCompletions(), and also copies the header and the new batch to the same offsets
+     * of the array, for a caller that cannot read the buffer memory directly.  Unity before
+     * GetDirectBufferAddress keeps one Java array for this and copies it back once per batch.
+     *
+     * @param destination - an array at least as long as the completion buffer.
+     * @return the number of records in the batch.
+     */
+    public static int pollCompletions(byte[] destination) {
+        CompletionQueue queue = completionQueue;
+        return queue != null ? queue.poll(destination) : 0;
+    }
+
+    /**
+     * Perform the Load SDK call to load credentials, writing the result to the completion
+     * buffer.
+     *
+     * @param parentActivity - the activity to be the parent.
+     * @param requestId      - the id written with the result.
+     * @param timeoutMillis  - the time the load has to complete, 0 for the default.
+     * @param maxRetries     - the number of retries, -1 for the default of setRetryPolicy().
+     * @param accountTypes   - the array of account types to limit the credential returned.
+     * @return the operation id to pass to cancel(), or 0 if the result was already written.
+     */
+    public static long doLoadQueued(Activity parentActivity,
+                                    long requestId,
+                                    long timeoutMillis,
+                                    int maxRetries,
+                                    String... accountTypes) {
+        return dispatcher.load(backend(parentActivity),
+                completionHandler(requestId), timeoutMillis, maxRetries, accountTypes);
+    }
+
+    /**
+     * Perform the Save SDK call to store credentials, writing the result to the completion
+     * buffer.
+     *
+     * @param parentActivity  - the activity to be the parent.
+     * @param requestId       - the id written with the result.
+     * @param timeoutMillis   - the time the save has to complete, 0 for the default.
+     * @param maxRetries      - the number of retries, -1 for the default of setRetryPolicy().
+     * @param email           - email or user id for the credential.
+     * @param password        - the password
+     * @param accountType     - the account type of the credential.  null is allowed.
+     * @param name            - the display name of the user.
+     * @param profilePicutureURL - the url for the profile image for the credential.
+     * @return the operation id to pass to cancel(), or 0 if the result was already written.
+     */
+    public static long doSaveQueued(Activity parentActivity,
+                                    long requestId,
+                                    long timeoutMillis,
+                                    int maxRetries,
+                                    String email,
+                                    String password,
+                                    String accountType,
+                                    String name,
+                                    String profilePicutureURL) {
+        return dispatcher.save(backend(parentActivity),
+                completionHandler(requestId), timeoutMillis, maxRetries, email, password,
+                accountType, name, profilePicutureURL);
+    }
+
+    /**
+     * Performs the delete SDK call to delete the specfied credential, writing the result to the
+     * completion buffer.
+     *
+     * @param parentActivity  - the activity to be the parent.
+     * @param requestId       - the id written with the result.
+     * @param timeoutMillis   - the time the delete has to complete, 0 for the default.
+     * @param maxRetries      - the number of retries, -1 for the default of setRetryPolicy().
+     * @param email           - email or user id for the credential.
+     * @param password        - the password
+     * @param accountType     - the account type of the credential.  null is allowed.
+     * @return the operation id to pass to cancel(), or 0 if the result was already written.
+     */
+    public static long doDeleteQueued(Activity parentActivity,
+                                      long requestId,
+                                      long timeoutMillis,
+                                      int maxRetries,
+                                      String email,
+                                      String password,
+                                      String accountType) {
+        return dispatcher.delete(backend(parentActivity),
+                completionHandler(requestId), timeoutMillis, maxRetries, email, password,
+                accountType);
+    }
+
+    private static SmartLockSupportResponseHandler completionHandler(long requestId) {
+        CompletionQueue queue = completionQueue;
+        if (queue == null) {
+            throw new IllegalStateException("setCompletionBuffer() was not called");
         }
+        return queue.handler(requestId);
     }
 
-    @Override
-    protected void onCreate(Bundle savedInstanceState) {
-        Log.d(TAG, "OnCreate called");
-        super.onCreate(savedInstanceState);
-        // Instantiate GoogleApiClient.  This is a very simple GoogleApiClient that only connects
-        // to the Auth.CREDENTIALS_API, which does not require the user to go through the sign-in
-        // flow before connecting.  If you are going to use this API with other Google APIs/scopes
-        // that require sign-in (such as Google+ or Google Drive), it may be useful to separate
-        // the CREDENTIALS_API into its own GoogleApiClient with separate lifecycle listeners.
-        mCredentialsApiClient = new GoogleApiClient.Builder(this)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .addApi(Auth.CREDENTIALS_API)
-                .build();
+    /**
+     * Saves a batch of credentials.  The credentials are passed as parallel arrays, a missing
+     * or short array is treated as nulls.  All the saves run on the same connection, any
+     * resolutions they need are shown one after another by the same activity, and the handler is
+     * called once with the result code of each credential.
+     *
+     * @param parentActivity      - the activity to be the parent.
+     * @param responseHandler     - the handler object to call back when the batch is complete.
+     * @param emails              - email or user id of each credential.
+     * @param passwords           - the password of each credential.
+     * @param accountTypes        - the account type of each credential.  null is allowed.
+     * @param names               - the display name of each credential.
+     * @param profilePictureURLs  - the url for the profile image of each credential.
+     */
+    public static void doSaveBatch(Activity parentActivity,
+                                   SmartLockSupportBatchResponseHandler responseHandler,
+                                   String[] emails,
+                                   String[] passwords,
+                                   String[] accountTypes,
+                                   String[] names,
+                                   String[] profilePictureURLs) {
+        dispatcher.saveBatch(backend(parentActivity), responseHandler,
+                emails, passwords, accountTypes, names, profilePictureURLs);
+    }
 
+    /**
+     * Deletes a batch of credentials.  The credentials are passed as parallel arrays, a missing
+     * or short array is treated as nulls.  All the deletes run on the same connection, and the
+     * handler is called once with the result code of each credential.
+     *
+     * @param parentActivity  - the activity to be the parent.
+     * @param responseHandler - the handler object to call back when the batch is complete.
+     * @param emails          - email or user id of each credential.
+     * @param passwords       - the password of each credential.
+     * @param accountTypes    - the account type of each credential.  null is allowed.
+     */
+    public static void doDeleteBatch(Activity parentActivity,
+                                     SmartLockSupportBatchResponseHandler responseHandler,
+                                     String[] emails,
+                                     String[] passwords,
+                                     String[] accountTypes) {
+        dispatcher.deleteBatch(backend(parentActivity), responseHandler,
+                emails, passwords, accountTypes);
     }
 
-    @Override
-    public void onStart() {
-        Log.d(TAG, "OnStart called");
-        super.onStart();
-        mCredentialsApiClient.connect();
+    /**
+     * Registers the listener that receives the latency breakdown of each operation.  Tracing
+     * costs nothing while no listener is registered.
+     *
+     * @param traceListener - the listener, or null to stop tracing.
+     */
+    public static void setTraceListener(SmartLockSupportTraceListener traceListener) {
+        OperationTracer.setListener(traceListener);
     }
 
-    @Override
-    public void onStop() {
-        Log.d(TAG, "OnStop called");
-        super.onStop();
-        mCredentialsApiClient.disconnect();
+    /**
+     * Returns the aggregate metrics of the operations: latency histograms per operation,
+     * counters of how operations completed and counters per result code, packed in one array
+     * so it can be fetched in a single call.  The array starts with a version, the number of
+     * histogram buckets and the number of result code counters, then has, for read, save and
+     * delete: count, total and max latency in microseconds and the histogram; then the silent
+     * success, resolution required, resolution canceled and skipped save counters; then the
+     * counter of each result code starting at SUCCESS_CACHE (-1).  Loads served from the cache
+     * and skipped saves are counted too.
+     *
+     * @param reset - true to reset the metrics after reading them.
+     */
+    public static long[] getMetricsSnapshot(boolean reset) {
+        return OperationMetrics.snapshot(reset);
     }
 
-    @Override
-    public void onConnected(Bundle bundle) {
-        Log.d(TAG, "onConnected called");
-
-        // Now that we are connected, figure out what needs to be done and do it.
-        Intent intent = getIntent();
-        int op = intent.getIntExtra(OperationKey, -1);
-        SmartLockSupportResponseHandler responseHandler = responseHandlers.get(
-                intent.getStringExtra(ResponseHandlerKey));
-
-        String accountType = intent.getStringExtra(AccountTypeKey);
-        String email = intent.getStringExtra(EmailKey);
-        String password = intent.getStringExtra(PasswordKey);
-        String name = intent.getStringExtra(NameKey);
-        String avatarURL = intent.getStringExtra(AvatarURLKey);
-
-        switch (op) {
-            case RC_READ:
-                String accountTypes[] = intent.getStringArrayExtra(AccountTypesKey);
-                loadCredentials(responseHandler, accountTypes);
-                break;
-            case RC_SAVE:
-                saveCredential(responseHandler, email, password, accountType, name, avatarURL);
+    /**
+     * Returns the most recent events of the operations, oldest first, one per line, to attach
+     * to bug reports.  The events are always recorded, and only formatted when this is called.
+     */
+    public static String dumpTrace() {
+        return TraceBuffer.dump();
+    }
+
+    /**
+     * Enables logging to logcat.  Logging is off by default, so release builds spend no time
+     * on it.  At DEBUG, every traced event is logged as it happens.
+     *
+     * @param priority - the lowest android.util.Log priority logged, or Integer.MAX_VALUE to
+     *                 turn logging off.
+     */
+    public static void setLogLevel(int priority) {
+        SupportLog.setLevel(priority);
+    }
+
+    /**
+     * Cancels an operation.  Its handler is called with CANCELED right away, unless the operation
+     * already completed.  Any resolution showing for it is closed.
+     *
+     * @param operationId - the id returned when the operation was started.
+     * @return true if the operation was canceled, false if it had already completed.
+     */
+    public static boolean cancel(long operationId) {
+        return dispatcher.cancel(operationId);
+    }
+
+    /**
+     * Returns true if somebody is still waiting for the result of the operation: its own
+     * handler, or the handler of a load attached to it.  Operations that nobody waits for
+     * anymore are not started, and their resolutions are not shown.
+     */
+    static boolean isWaitingForResult(long responseHandlerKey) {
+        return dispatcher.isWaitingForResult(responseHandlerKey);
+    }
+
+    /**
+     * Called right before the request of an operation is issued to the Credentials API.
+     *
+     * @return true to issue it, false if the operation completed or its request was already
+     * issued, such as an operation replayed after a reconnect.
+     */
+    static boolean beginRequest(long responseHandlerKey) {
+        return dispatcher.beginRequest(responseHandlerKey);
+    }
+
+    /**
+     * Called when an operation timed out or was canceled, to drop its queued resolution or
+     * close the one showing.
+     */
+    private static void abandon(final long responseHandlerKey) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isWaitingForResult(responseHandlerKey)) {
+                    return;
+                }
+                boolean abandoned = false;
+                Iterator<Resolution> it = pendingResolutions.iterator();
+                while (it.hasNext()) {
+                    if (it.next().mResponseHandlerKey == responseHandlerKey) {
+                        it.remove();
+                        abandoned = true;
+                    }
+                }
+                if (currentResolution != null
+                        && currentResolution.mResponseHandlerKey == responseHandlerKey
+                        && session != null) {
+                    TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_RESOLUTION_CLOSED);
+                    session.finishActivity(currentResolution.mRequestCode);
+                    currentResolution = null;
+                    abandoned = true;
+                    session.resolveNext();
+                }
+                if (abandoned) {
+                    // Nobody gets this result, it only ends the operation.
+                    deliverResult(responseHandlerKey, CommonStatusCodes.CANCELED,
+                            null, null, null, null, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets where the response handlers are called.  By default they are called inline, on the
+     * main thread for most results, which delays the main thread (and finishing this activity)
+     * for as long as the handler runs.  With CALLBACKS_BACKGROUND_THREAD they are called one at a
+     * time on a dedicated background thread instead.  This applies to the operations that
+     * complete after the call.
+     *
+     * @param delivery - CALLBACKS_INLINE or CALLBACKS_BACKGROUND_THREAD.
+     */
+    public static void setCallbackDelivery(int delivery) {
+        switch (delivery) {
+            case CALLBACKS_INLINE:
+                dispatcher.setCallbackExecutor(null);
                 break;
-            case RC_DELETE:
-                deleteCredential(accountType, email, password, responseHandler);
+            case CALLBACKS_BACKGROUND_THREAD:
+                dispatcher.setCallbackExecutor(callbackThreadExecutor());
                 break;
             default:
-                Log.w(TAG, "No operation key in the extras, finishing activity");
-                callbackAndFinish(responseHandler, CommonStatusCodes.DEVELOPER_ERROR,
+                throw new IllegalArgumentException("Unknown callback delivery: " + delivery);
+        }
+    }
+
+    /**
+     * Sets the executor that calls the response handlers, such as one that posts them to the
+     * game's own thread.  The handlers of an operation are called in one task.  If the executor
+     * rejects a task, the handlers are called inline.
+     *
+     * @param executor - the executor, or null to call the handlers inline.
+     */
+    public static void setCallbackExecutor(Executor executor) {
+        dispatcher.setCallbackExecutor(executor);
+    }
+
+    private static synchronized Executor callbackThreadExecutor() {
+        if (callbackThreadExecutor == null) {
+            callbackThread = new HandlerThread("SmartLockCallbacks");
+            callbackThread.start();
+            final Handler handler = new Handler(callbackThread.getLooper());
+            callbackThreadExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        return callbackThreadExecutor;
+    }
+
+    /**
+     * Caps the number of operations in flight, so a script starting an operation every frame
+     * cannot pile up requests and resolutions.  Loads attached to a load in flight, and results
+     * served from the cache, do not count.  An operation over a cap is handled by the policy:
+     * ADMISSION_QUEUE waits for an operation to complete, ADMISSION_REJECT completes it with
+     * TOO_MANY_OPERATIONS (-2), and ADMISSION_REPLACE_OLDEST completes the oldest operation of
+     * the same kind in flight with REPLACED (-3) and starts in its place once the request of the
+     * replaced operation returns.  An operation only leaves the cap when its request returns,
+     * even if it completed before with a timeout or cancel.  Past the queue cap, queued
+     * operations are rejected too.
+     *
+     * @param maxInFlight      - the maximum number of operations in flight, 0 for no cap.
+     * @param maxInFlightPerOp - the maximum number of loads, saves or deletes in flight, 0 for
+     *                         no cap.
+     * @param maxQueued        - the maximum number of operations waiting with ADMISSION_QUEUE,
+     *                         0 for no cap.
+     * @param policy           - ADMISSION_QUEUE, ADMISSION_REJECT or ADMISSION_REPLACE_OLDEST.
+     */
+    public static void configureAdmission(int maxInFlight, int maxInFlightPerOp, int maxQueued,
+                                          int policy) {
+        dispatcher.configureAdmission(maxInFlight, maxInFlightPerOp, maxQueued, policy);
+    }
+
+    /**
+     * Returns the admission counters: the operations in flight and queued now, the most
+     * operations queued at once, and the number of operations rejected and replaced.
+     *
+     * @param reset - true to reset the maximum and the counters after reading them.
+     */
+    public static long[] getAdmissionSnapshot(boolean reset) {
+        return dispatcher.admissionSnapshot(reset);
+    }
+
+    /**
+     * Sets how operations that fail with a transient error (network, internal, interrupted and
+     * timeout errors, or API_NOT_CONNECTED when the connection fails) are retried.  Each retry
+     * waits a random time between half and all of a backoff that doubles after every retry.
+     *
+     * @param maxRetries      - the number of retries of operations that do not set their own.
+     * @param baseDelayMillis - the backoff before the first retry.
+     * @param maxDelayMillis  - the maximum backoff.
+     */
+    public static void setRetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+        dispatcher.setRetryPolicy(maxRetries, baseDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * Configures the circuit breaker shared by all the operations.  After failureThreshold
+     * transient failures in a row, operations fail right away with API_NOT_CONNECTED and are not
+     * retried for openMillis.  Then a single operation is let through, and only its result
+     * decides whether the breaker closes.
+     *
+     * @param failureThreshold - the number of failures in a row that opens the breaker, 0 to
+     *                         never open it.
+     * @param openMillis       - how long operations fail fast once it is open.
+     */
+    public static void configureCircuitBreaker(int failureThreshold, long openMillis) {
+        dispatcher.configureCircuitBreaker(failureThreshold, openMillis);
+    }
+
+    /**
+     * Enables the in-memory cache of loaded credentials.  While enabled, a load for the same
+     * account types as a previous successful load is answered from memory until the entry
+     * expires.  Saves and deletes invalidate the entries they could affect.
+     *
+     * @param ttlMillis  - how long a loaded credential is served from the cache. 0 disables the cache.
+     * @param maxEntries - the maximum number of sets of account types cached.
+     */
+    public static void configureCredentialCache(long ttlMillis, int maxEntries) {
+        dispatcher.configureCredentialCache(ttlMillis, maxEntries);
+    }
+
+    /**
+     * Enables skipping saves that would not change anything, such as saving the credential the
+     * user just signed in with after every sign in.  While enabled, a save of the same id,
+     * password, account type, name and profile picture as a save that succeeded within ttlMillis
+     * completes with SUCCESS right away, without calling the Credentials API.  A delete of the
+     * id ends the skipping.  Only salted digests of the credentials are kept in memory.
+     *
+     * @param ttlMillis  - how long a successful save skips identical saves. 0 disables it.
+     * @param maxEntries - the maximum number of credential ids remembered.
+     */
+    public static void configureSaveDeduplication(long ttlMillis, int maxEntries) {
+        dispatcher.configureSaveDeduplication(ttlMillis, maxEntries);
+    }
+
+    /**
+     * Removes all the credentials from the cache, and forgets the recent saves.  Call this when
+     * the user signs out, so the next load and save go to the Credentials API.
+     */
+    public static void clearCredentialCache() {
+        dispatcher.clearCredentialCache();
+    }
+
+    /**
+     * Sets how long the activity stays alive after its last resolution, waiting for another one.
+     * The activity is invisible but it is on top of the parent activity while alive, so keep
+     * this short.
+     *
+     * @param millis - the idle timeout, 0 finishes the activity as soon as the queue is empty.
+     */
+    public static void setSessionIdleTimeout(long millis) {
+        idleTimeoutMillis = Math.max(0, millis);
+    }
+
+    /**
+     * Answers the operations started from now on with an in-memory emulator of the Credentials
+     * API instead of Google Play services, to reproduce latency and failure scenarios.
+     * Configure the returned emulator with credentials, latencies and failures.  Every call
+     * returns the same emulator, reset to its defaults.
+     *
+     * @return the emulator.
+     */
+    public static synchronized CredentialsEmulator useCredentialsEmulator() {
+        if (emulatorInstance == null) {
+            emulatorInstance = new CredentialsEmulator(dispatcher);
+        }
+        emulator = emulatorInstance.reset();
+        return emulatorInstance;
+    }
+
+    /**
+     * Answers the operations started from now on with the Credentials API again.
+     */
+    public static void useCredentialsApi() {
+        emulator = null;
+    }
+
+    private static CredentialsBackend backend(Activity parentActivity) {
+        CredentialsBackend backend = emulator;
+        return backend != null ? backend : new ClientManagerBackend(parentActivity);
+    }
+
+    /**
+     * Queues the resolution of an operation's status and starts this activity if it is not
+     * already running.  A running activity resolves the queued statuses one after another
+     * before finishing.  Must be called on the main thread.
+     *
+     * @param parentActivity     - the activity to be the parent.
+     * @param responseHandlerKey - the key of the response handler for the operation.
+     * @param op                 - the operation, RC_READ or RC_SAVE.
+     * @param status             - the status that has a resolution.
+     */
+    static void startResolution(Activity parentActivity, long responseHandlerKey,
+                                int op, Status status) {
+        // Each resolution gets its own request code, so a late result for a resolution that was
+        // abandoned is not mistaken for the result of the next one.
+        int requestCode = ((nextResolutionSequence++ & RESOLUTION_SEQUENCE_MASK) << 3) | op;
+        pendingResolutions.add(new Resolution(responseHandlerKey, op, requestCode, status));
+        dispatcher.awaitingResolution(responseHandlerKey);
+        TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_RESOLUTION_QUEUED, requestCode);
+        OperationMetrics.countCompletion(OperationMetrics.COMPLETION_RESOLUTION_REQUIRED);
+        if (sessionStarted) {
+            if (session != null && currentResolution == null) {
+                session.resolveNext();
+            }
+            return;
+        }
+        try {
+            // The intent has no extras: the operations, their credentials and handlers stay in
+            // the in-process tables, so no password is parceled or kept in the saved state.
+            Intent intent = new Intent(parentActivity, SmartLockSupportActivity.class);
+            TraceBuffer.record(0, TraceBuffer.EVENT_SESSION_START);
+            OperationTracer.mark(responseHandlerKey, SmartLockSupportTraceListener.PHASE_START_ACTIVITY);
+            sessionStarted = true;
+            parentActivity.startActivity(intent);
+        } catch (Throwable t) {
+            TraceBuffer.record(0, TraceBuffer.EVENT_SESSION_FAILED);
+            if (SupportLog.isLoggable(SupportLog.ERROR)) {
+                SupportLog.e(TAG, "Got a throwable, cannot start activity " + t.getMessage());
+            }
+            sessionStarted = false;
+            Resolution resolution;
+            while ((resolution = pendingResolutions.poll()) != null) {
+                deliverResult(resolution.mResponseHandlerKey, CommonStatusCodes.INTERNAL_ERROR,
                         null, null, null, null, null);
+            }
         }
     }
 
     @Override
-    public void onConnectionSuspended(int cause) {
-        Log.d(TAG, "onConnectionSuspended:" + cause);
-        mCredentialsApiClient.reconnect();
+    protected void onCreate(Bundle savedInstanceState) {
+        TraceBuffer.record(0, TraceBuffer.EVENT_SESSION_CREATE);
+        super.onCreate(savedInstanceState);
+        session = this;
+        for (Resolution resolution : pendingResolutions) {
+            OperationTracer.mark(resolution.mResponseHandlerKey,
+                    SmartLockSupportTraceListener.PHASE_ACTIVITY_CREATE);
+        }
+
+        // Recreated after a configuration change, the resolutions are still queued.  Recreated
+        // after the process died, the operations are gone with their handlers: nothing is run
+        // again, and the activity finishes right away.
+        if (savedInstanceState != null && currentResolution == null
+                && pendingResolutions.isEmpty() && allCompleted(
+                savedInstanceState.getLongArray(STATE_RESOLUTIONS))) {
+            mFinishWhenIdle.run();
+            return;
+        }
+
+        // When recreated while a resolution is showing, the result comes back through
+        // onActivityResult.
+        if (currentResolution == null) {
+            resolveNext();
+        }
     }
 
     @Override
-    public void onConnectionFailed(ConnectionResult connectionResult) {
-        Log.d(TAG, "onConnectionFailed:" + connectionResult);
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        long[] resolutions = new long[pendingResolutions.size()
+                + (currentResolution != null ? 1 : 0)];
+        int i = 0;
+        if (currentResolution != null) {
+            resolutions[i++] = currentResolution.mResponseHandlerKey;
+        }
+        for (Resolution resolution : pendingResolutions) {
+            resolutions[i++] = resolution.mResponseHandlerKey;
+        }
+        outState.putLongArray(STATE_RESOLUTIONS, resolutions);
+    }
+
+    private static boolean allCompleted(long[] operationIds) {
+        if (operationIds != null) {
+            for (long operationId : operationIds) {
+                if (dispatcher.stateOf(operationId) != OperationDispatcher.STATE_COMPLETED) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mFinishWhenIdle);
+        if (session == this) {
+            session = null;
+        }
+        if (isFinishing() && !mDrained) {
+            sessionStarted = false;
+            // Finished by the system or the user rather than by resolveNext, so nobody else
+            // will complete these.
+            if (currentResolution != null) {
+                deliverResult(currentResolution.mResponseHandlerKey, CommonStatusCodes.CANCELED,
+                        null, null, null, null, null);
+                currentResolution = null;
+            }
+            Resolution resolution;
+            while ((resolution = pendingResolutions.poll()) != null) {
+                deliverResult(resolution.mResponseHandlerKey, CommonStatusCodes.CANCELED,
+                        null, null, null, null, null);
+            }
+        }
     }
 
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
-        Log.d(TAG, "onActivityResult:" + requestCode + ":" + resultCode + ":" + data);
-
+        if (currentResolution == null || currentResolution.mRequestCode != requestCode) {
+            // The result of an abandoned resolution.
+            TraceBuffer.record(0, TraceBuffer.EVENT_RESULT_IGNORED, requestCode);
+            return;
+        }
+        TraceBuffer.record(currentResolution.mResponseHandlerKey,
+                TraceBuffer.EVENT_RESOLUTION_RESULT, resultCode);
+        OperationTracer.mark(currentResolution.mResponseHandlerKey,
+                SmartLockSupportTraceListener.PHASE_RESOLUTION_RESULT);
 
-        switch (requestCode) {
+        switch (currentResolution.mOp) {
             case RC_READ:
                 if (resultCode == RESULT_OK) {
                     Credential credential = data.getParcelableExtra(Credential.EXTRA_KEY);
-                    SmartLockSupportResponseHandler callback = responseHandlers.get(
-                            getIntent().getStringExtra(ResponseHandlerKey));
-                    processRetrievedCredential(credential, callback);
+                    callbackAndContinue(CommonStatusCodes.SUCCESS,
+                            credential.getId(),
+                            credential.getPassword(),
+                            credential.getName(),
+                            credential.getAccountType(),
+                            credential.getProfilePictureUri() != null ? credential.getProfilePictureUri().toString() : null);
                 } else {
-                    Log.e(TAG, "Credential Read: NOT OK");
-                    SmartLockSupportResponseHandler callback = responseHandlers.get(
-                            getIntent().getStringExtra(ResponseHandlerKey));
-                    callbackAndFinish(callback, CommonStatusCodes.CANCELED, null, null, null, null, null);
+                    OperationMetrics.countCompletion(OperationMetrics.COMPLETION_RESOLUTION_CANCELED);
+                    callbackAndContinue(CommonStatusCodes.CANCELED, null, null, null, null, null);
                 }
                 break;
             case RC_SAVE:
                 if (resultCode == RESULT_OK) {
-                    Log.d(TAG, "Credential Save: OK");
-                    SmartLockSupportResponseHandler callback = responseHandlers.get(
-                            getIntent().getStringExtra(ResponseHandlerKey));
-                    callbackAndFinish(callback, resultCode, null, null, null, null, null);
+                    callbackAndContinue(CommonStatusCodes.SUCCESS, null, null, null, null, null);
                 } else {
-                    Log.e(TAG, "Credential Save: NOT OK");
-                    SmartLockSupportResponseHandler callback = responseHandlers.get(
-                            getIntent().getStringExtra(ResponseHandlerKey));
-                    callbackAndFinish(callback, resultCode, null, null, null, null, null);
+                    OperationMetrics.countCompletion(OperationMetrics.COMPLETION_RESOLUTION_CANCELED);
+                    callbackAndContinue(CommonStatusCodes.CANCELED, null, null, null, null, null);
                 }
                 break;
+            default:
+                if (SupportLog.isLoggable(SupportLog.WARN)) {
+                    SupportLog.w(TAG, "Unknown operation " + currentResolution.mOp);
+                }
+                callbackAndContinue(CommonStatusCodes.DEVELOPER_ERROR, null, null, null, null, null);
         }
     }
 
     /**
-     * Invokes the result handler and cleans up the activity.
-     *
-     * @param responseHandler   - the response handler to invoke.
-     * @param resultCode        - the result code of the operation.
-     * @param id                - the credential id
-     * @param password          - the credential password.
-     * @param name              - the credential display name.
-     * @param accountType       - the account type
-     * @param profilePictureURL - the profile picture.
+     * Starts the resolution of the next queued status.  If there are none, the activity finishes
+     * unless another resolution is queued within the idle timeout.
      */
-    private void callbackAndFinish(SmartLockSupportResponseHandler responseHandler,
-                                   int resultCode, String id, String password, String name,
-                                   String accountType, String profilePictureURL) {
-        try {
-            Log.d(TAG, "Calling responseHandler with code: " + resultCode);
-
-            responseHandler.OnResult(resultCode, id != null ? id : "",
-                    password != null ? password : "",
-                    name != null ? name : "",
-                    accountType != null ? accountType : "",
-                    profilePictureURL != null ? profilePictureURL : "");
-        } catch (Throwable t) {
-            Log.w(TAG, "Caught throwable calling responseHandler: " + t.getMessage());
-        } finally {
-            Log.d(TAG, "Finishing");
-            responseHandlers.remove(getIntent().getStringExtra(ResponseHandlerKey));
-            finish();
+    private void resolveNext() {
+        mHandler.removeCallbacks(mFinishWhenIdle);
+        while ((currentResolution = pendingResolutions.poll()) != null) {
+            if (!isWaitingForResult(currentResolution.mResponseHandlerKey)) {
+                deliverResult(currentResolution.mResponseHandlerKey, CommonStatusCodes.CANCELED,
+                        null, null, null, null, null);
+                continue;
+            }
+            try {
+                OperationTracer.mark(currentResolution.mResponseHandlerKey,
+                        SmartLockSupportTraceListener.PHASE_RESOLUTION_START);
+                TraceBuffer.record(currentResolution.mResponseHandlerKey,
+                        TraceBuffer.EVENT_RESOLUTION_START);
+                currentResolution.mStatus.startResolutionForResult(this,
+                        currentResolution.mRequestCode);
+                return;
+            } catch (IntentSender.SendIntentException e) {
+                TraceBuffer.record(currentResolution.mResponseHandlerKey,
+                        TraceBuffer.EVENT_RESOLUTION_FAILED);
+                SupportLog.e(TAG, "STATUS: Failed to send resolution.", e);
+                deliverResult(currentResolution.mResponseHandlerKey,
+                        CommonStatusCodes.INTERNAL_ERROR, null, null, null, null, null);
+            }
         }
+        // Nothing left to resolve, wait a moment in case another resolution follows.
+        mHandler.postDelayed(mFinishWhenIdle, idleTimeoutMillis);
     }
 
     /**
-     * Save the given credential information.
+     * Invokes the result handler of the current resolution and moves on to the next one.
      *
-     * @param responseHandler   - the response handler to invoke.
+     * @param resultCode        - the result code of the operation.
      * @param id                - the credential id
      * @param password          - the credential password.
      * @param name              - the credential display name.
      * @param accountType       - the account type
      * @param profilePictureURL - the profile picture.
      */
-    public void saveCredential(final SmartLockSupportResponseHandler responseHandler,
-                               String id,
-                               String password,
-                               String accountType,
-                               String name,
-                               String profilePictureURL) {
-
-
+    private void callbackAndContinue(int resultCode, String id, String password, String name,
+                                     String accountType, String profilePictureURL) {
+        Resolution resolution = currentResolution;
+        currentResolution = null;
         try {
-
-            // Create a Credential with the user's email as the ID and storing the password.  We
-            // could also add 'Name' and 'ProfilePictureURL' but that is outside the scope of this
-            // minimal sample.
-            Log.d(TAG, "Saving Credential type:" + accountType + ":" + id + ": " + name + " " + profilePictureURL);
-            Credential.Builder builder = new Credential.Builder(id);
-
-            if (password != null) {
-                builder.setPassword(password);
-            }
-            if (accountType != null && !accountType.isEmpty()) {
-                builder.setAccountType(accountType);
-            }
-            if (name != null) {
-                builder.setName(name);
-            }
-            if (profilePictureURL != null) {
-                builder.setProfilePictureUri(Uri.parse(profilePictureURL));
+            if (resolution != null) {
+                deliverResult(resolution.mResponseHandlerKey, resultCode, id,
+                        password, name, accountType, profilePictureURL);
             }
-
-            final Credential credential = builder.build();
-
-
-            // NOTE: this method unconditionally saves the Credential built, even if all the fields
-            // are blank or it is invalid in some other way.  In a real application you should contact
-            // your app's back end and determine that the credential is valid before saving.
-            Auth.CredentialsApi.save(mCredentialsApiClient, credential).setResultCallback(
-                    new ResultCallback<Status>() {
-                        @Override
-                        public void onResult(Status status) {
-                            if (status.isSuccess()) {
-                                Log.d(TAG, "SAVE: OK");
-                                callbackAndFinish(responseHandler, status.getStatusCode(), credential.getId(),
-                                        credential.getPassword(), credential.getName(),
-                                        credential.getAccountType(), credential.getProfilePictureUri().toString());
-                            } else {
-                                resolveResult(status, RC_SAVE, responseHandler);
-                            }
-                        }
-                    });
-
-        }
-        catch (Throwable t) {
-            Log.e(TAG, "Exception caught: " + t.getMessage());
-            callbackAndFinish(responseHandler, CommonStatusCodes.DEVELOPER_ERROR, null, null,null,null,null);
+        } finally {
+            resolveNext();
         }
     }
 
     /**
-     * Attempts to read the user's saved
-     * Credentials from the Credentials API.
-     * <p/>
-     * <b>Note:</b> Make sure not to load credentials automatically if the user has clicked
-     * a "sign out" button in your application in order to avoid a sign-in loop.
-     */
-    private void loadCredentials(final SmartLockSupportResponseHandler callback,
-                                 String... accountTypes) {
-        // Request all of the user's saved username/password credentials.  We are not using
-        // setAccountTypes so we will not load any credentials from other Identity Providers.
-        CredentialRequest request = new CredentialRequest.Builder()
-                .setSupportsPasswordLogin(true)
-                .setAccountTypes(accountTypes)
-                .build();
-
-        Auth.CredentialsApi.request(mCredentialsApiClient, request).setResultCallback(
-                new ResultCallback<CredentialRequestResult>() {
-                    @Override
-                    public void onResult(CredentialRequestResult credentialRequestResult) {
-                        if (credentialRequestResult.getStatus().isSuccess()) {
-                            // Successfully read the credential without any user interaction, this
-                            // means there was only a single credential and the user has auto
-                            // sign-in enabled.
-                            processRetrievedCredential(credentialRequestResult.getCredential(),
-                                    callback);
-                        } else {
-                            // Reading the credential requires a resolution, which means the user
-                            // may be asked to pick among multiple credentials if they exist.
-                            Status status = credentialRequestResult.getStatus();
-                            // This is most likely the case where the user has multiple saved
-                            // credentials and needs to pick one
-                            resolveResult(status, RC_READ, callback);
-                        }
-                    }
-                });
+     * Invokes the result handler and removes it from the registry.  If the operation is a load,
+     * a successful result is stored in the credential cache and the loads attached to it are
+     * invoked with the same result.
+     *
+     * @param responseHandlerKey - the id of the operation whose handler to invoke.
+     * @param resultCode         - the result code of the operation.
+     * @param id                 - the credential id
+     * @param password           - the credential password.
+     * @param name               - the credential display name.
+     * @param accountType        - the account type
+     * @param profilePictureURL  - the profile picture.
+     */
+    static void deliverResult(long responseHandlerKey,
+                              int resultCode, String id, String password, String name,
+                              String accountType, String profilePictureURL) {
+        dispatcher.deliverResult(responseHandlerKey, resultCode, id, password, name,
+                accountType, profilePictureURL);
     }
 
     /**
-     * Deletes the credential information.
-     *
-     * @param responseHandler - the response handler to invoke.
-     * @param id              - the credential id
-     * @param password        - the credential password.
-     * @param accountType     - the account type
+     * The backend of the operations started from the public entry points: the shared
+     * GoogleApiClient, with the calling activity as the parent of any resolution.
      */
-    public void deleteCredential(String accountType, String id, String password,
-                                 final SmartLockSupportResponseHandler responseHandler) {
-        Credential.Builder builder = new Credential.Builder(id);
+    private static final class ClientManagerBackend implements CredentialsBackend {
+        private final Context mContext;
+        private final Activity mParentActivity;
 
-        if (password != null) {
-            builder.setPassword(password);
-        }
-        if (accountType != null && !accountType.isEmpty()) {
-            builder.setAccountType(accountType);
+        ClientManagerBackend(Activity parentActivity) {
+            this(parentActivity, parentActivity);
         }
 
-        final Credential credential = builder.build();
-
-        Log.d(TAG, "Deleting credential " + id);
+        /**
+         * @param context        - any context, used to get the client.
+         * @param parentActivity - the parent of resolutions, null if only prefetching.
+         */
+        ClientManagerBackend(Context context, Activity parentActivity) {
+            mContext = context;
+            mParentActivity = parentActivity;
+        }
 
-        Auth.CredentialsApi.delete(mCredentialsApiClient, credential).setResultCallback(
-                new ResultCallback<Status>() {
-                    @Override
-                    public void onResult(Status status) {
-                        if (status.isSuccess()) {
-                            Log.d(TAG, "deleted: OK");
-                            callbackAndFinish(responseHandler, status.getStatusCode(), null, null, null, null, null);
-                        } else {
-                            resolveResult(status, RC_SAVE, responseHandler);
-                        }
-                    }
-                });
+        @Override
+        public void load(long operationId, String... accountTypes) {
+            SmartLockClientManager.getInstance(mContext)
+                    .load(mParentActivity, operationId, accountTypes);
+        }
 
+        @Override
+        public void prefetch(long operationId, String... accountTypes) {
+            SmartLockClientManager.getInstance(mContext).prefetch(operationId, accountTypes);
+        }
 
-    }
+        @Override
+        public void save(long operationId, String id, String password, String accountType,
+                         String name, String profilePictureURL) {
+            SmartLockClientManager.getInstance(mContext)
+                    .save(mParentActivity, operationId, id, password, accountType, name,
+                            profilePictureURL);
+        }
 
-    /**
-     * Attempt to resolve a non-successful Status from an asynchronous request.
-     *
-     * @param status      the Status to resolve.
-     * @param requestCode the request code to use when starting an Activity for result,
-     */
-    private void resolveResult(Status status, int requestCode, SmartLockSupportResponseHandler callback) {
-        Log.d(TAG, "Resolving: " + status);
-        if (status.hasResolution()) {
-            Log.d(TAG, "STATUS: RESOLVING");
-            try {
-                status.startResolutionForResult(SmartLockSupportActivity.this, requestCode);
-            } catch (IntentSender.SendIntentException e) {
-                Log.e(TAG, "STATUS: Failed to send resolution.", e);
-                callbackAndFinish(callback, CommonStatusCodes.INTERNAL_ERROR, null, null, null, null, null);
-            }
-        } else {
-            Log.e(TAG, "STATUS: FAIL");
-            callbackAndFinish(callback, CommonStatusCodes.INTERNAL_ERROR, null, null, null, null, null);
+        @Override
+        public void delete(long operationId, String id, String password, String accountType) {
+            SmartLockClientManager.getInstance(mContext)
+                    .delete(mParentActivity, operationId, id, password, accountType);
         }
     }
 
     /**
-     * Process a Credential object retrieved from a successful request.
-     *
-     * @param credential the Credential to process.
+     * A Status waiting to be resolved by the activity.
      */
-    private void processRetrievedCredential(Credential credential,
-                                            SmartLockSupportResponseHandler callback) {
-        Log.d(TAG, "Credential Retrieved: " + credential.getId());
+    private static final class Resolution {
+        final long mResponseHandlerKey;
+        final int mOp;
+        final int mRequestCode;
+        final Status mStatus;
 
-        callbackAndFinish(callback, CommonStatusCodes.SUCCESS,
-                credential.getId(),
-                credential.getPassword(),
-                credential.getName(),
-                credential.getAccountType(),
-                credential.getProfilePictureUri() != null ?credential.getProfilePictureUri().toString():null);
+        Resolution(long responseHandlerKey, int op, int requestCode, Status status) {
+            mResponseHandlerKey = responseHandlerKey;
+            mOp = op;
+            mRequestCode = requestCode;
+            mStatus = status;
+        }
     }
 }
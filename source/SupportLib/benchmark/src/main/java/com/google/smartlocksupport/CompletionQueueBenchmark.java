@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smartlocksupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing results to the completion buffer and publishing them, per batch of results
+ * completed between two polls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompletionQueueBenchmark {
+
+    // results completed between two polls.
+    @Param({"1", "16", "256"})
+    public int batchSize;
+
+    private CompletionQueue mQueue;
+    private SmartLockSupportResponseHandler[] mHandlers;
+
+    @Setup
+    public void setUp() {
+        mQueue = new CompletionQueue(ByteBuffer.allocateDirect(64 * 1024));
+        mHandlers = new SmartLockSupportResponseHandler[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            mHandlers[i] = mQueue.handler(i);
+        }
+    }
+
+    @Benchmark
+    public int completeAndPoll() {
+        for (SmartLockSupportResponseHandler handler : mHandlers) {
+            handler.OnResult(StatusCodes.SUCCESS, "user@example.com", "password", "User",
+                    "https://accounts.google.com", "https://example.com/user.png");
+        }
+        return mQueue.poll();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smartlocksupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures whole operations through the OperationDispatcher against an in-memory backend that
+ * reports each result inline: building the request, registering the handler, calling the
+ * backend, and delivering the result to the handler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DispatchBenchmark {
+
+    private static final String ACCOUNT_TYPE = "https://accounts.example.com";
+    private static final int DEFAULT_RETRIES = OperationDispatcher.DEFAULT_RETRIES;
+
+    // registers operations without ever reporting their result.
+    private static final CredentialsBackend NO_OP_BACKEND = new CredentialsBackend() {
+        @Override
+        public void load(long operationId, String... accountTypes) {
+        }
+
+        @Override
+        public void prefetch(long operationId, String... accountTypes) {
+        }
+
+        @Override
+        public void save(long operationId, String id, String password, String accountType,
+                         String name, String profilePictureURL) {
+        }
+
+        @Override
+        public void delete(long operationId, String id, String password, String accountType) {
+        }
+    };
+
+    private OperationDispatcher mDispatcher;
+    private OperationDispatcher mCachingDispatcher;
+    private InMemoryCredentialsBackend mBackend;
+    private InMemoryCredentialsBackend mCachingBackend;
+
+    @Setup
+    public void setUp() {
+        mDispatcher = new OperationDispatcher(ResponseHandlerRegistry.DEFAULT_EXPIRY_MS, null);
+        mBackend = new InMemoryCredentialsBackend(mDispatcher);
+        mBackend.save(0, "user@example.com", "password", ACCOUNT_TYPE, "User", null);
+
+        mCachingDispatcher =
+                new OperationDispatcher(ResponseHandlerRegistry.DEFAULT_EXPIRY_MS, null);
+        mCachingDispatcher.configureCredentialCache(TimeUnit.DAYS.toMillis(1), 8);
+        mCachingBackend = new InMemoryCredentialsBackend(mCachingDispatcher);
+        mCachingBackend.save(0, "user@example.com", "password", ACCOUNT_TYPE, "User", null);
+    }
+
+    @Benchmark
+    public long load(Blackhole blackhole) {
+        return mDispatcher.load(mBackend, handler(blackhole), 0, DEFAULT_RETRIES, ACCOUNT_TYPE);
+    }
+
+    @Benchmark
+    public long loadFromCache(Blackhole blackhole) {
+        return mCachingDispatcher.load(mCachingBackend, handler(blackhole), 0, DEFAULT_RETRIES,
+                ACCOUNT_TYPE);
+    }
+
+    @Benchmark
+    public long save(Blackhole blackhole) {
+        return mDispatcher.save(mBackend, handler(blackhole), 0, DEFAULT_RETRIES,
+                "user@example.com", "password", ACCOUNT_TYPE, "User", null);
+    }
+
+    @Benchmark
+    public void saveBatch(final Blackhole blackhole) {
+        mDispatcher.saveBatch(mBackend, new SmartLockSupportBatchResponseHandler() {
+            @Override
+            public void OnBatchResult(int resultCode, int[] resultCodes) {
+                blackhole.consume(resultCodes);
+            }
+        }, new String[]{"a@example.com", "b@example.com", "c@example.com", "d@example.com"},
+                null, new String[]{ACCOUNT_TYPE}, null, null);
+    }
+
+    @Benchmark
+    public void deliverResult(Blackhole blackhole) {
+        // The operation is registered by a backend that never reports, so this measures the
+        // delivery separately from the backend call.
+        long id = mDispatcher.save(NO_OP_BACKEND, handler(blackhole), 0, DEFAULT_RETRIES,
+                "user@example.com", "password", ACCOUNT_TYPE, "User", null);
+        mDispatcher.deliverResult(id, StatusCodes.SUCCESS, null, null, null, null, null);
+    }
+
+    private static SmartLockSupportResponseHandler handler(final Blackhole blackhole) {
+        return new SmartLockSupportResponseHandler() {
+            @Override
+            public void OnResult(int resultCode, String id, String password, String name,
+                                 String accountType, String profilePictureURL) {
+                blackhole.consume(resultCode);
+                blackhole.consume(id);
+            }
+        };
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smartlocksupport;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stress and soak test of the dispatch path.  Many threads start a mix of loads, saves and
+ * deletes against a CredentialsEmulator with latency and injected failures, with the credential
+ * cache, save deduplication, admission caps, retries, deadlines and cancels all in play.  Every
+ * round checks that each response handler was called exactly once, that none was turned away by
+ * the admission caps, whose queue holds a whole round, and that the dispatcher ends with nothing
+ * pending.  It reports the throughput and the completion latency of each outcome, so the fast
+ * failures do not hide in the latency of the successes.  In soak mode the rounds repeat for the
+ * given time, and the heap after the last round is compared to the heap after a warm-up.
+ * Operations get the production deadline unless --deadline sets another one, so the soak covers
+ * the deadlines scheduled and canceled by the registry.
+ * <p/>
+ * Run it with, for example:
+ * <pre>
+ *   ./gradlew :benchmark:stress -PstressArgs='--threads 32 --operations 50000'
+ *   ./gradlew :benchmark:stress -PstressArgs='--soak 600'
+ * </pre>
+ * It exits with status 1 if a check fails.
+ */
+public class DispatchStressTest {
+
+    private static final String[] ACCOUNT_TYPES = {
+            "https://accounts.google.com", "https://www.facebook.com", "https://example.com"};
+
+    // The time a soak runs before measuring the heap.
+    private static final long WARM_UP_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // How long a round waits for the backend calls to return after the last handler is called.
+    private static final long DRAIN_SECONDS = 10;
+
+    // Growth of the heap over a soak after the warm-up that is reported as a leak.
+    private static final long MAX_HEAP_GROWTH_BYTES = 4 * 1024 * 1024;
+
+    // The outcomes whose latency is reported separately.
+    private static final int OUTCOME_SUCCESS = 0;
+    private static final int OUTCOME_REJECTED = 1;
+    private static final int OUTCOME_TIMEOUT = 2;
+    private static final int OUTCOME_OTHER = 3;
+    private static final String[] OUTCOME_NAMES = {"success", "rejected", "timeout", "other"};
+
+    private int mThreads = 16;
+    private int mOperations = 20000;
+    private long mSoakSeconds;
+    private long mDeadlineMillis = ResponseHandlerRegistry.DEFAULT_EXPIRY_MS;
+    private long mMedianLatencyMillis = 2;
+    private long mP99LatencyMillis = 40;
+    private long mSeed = 1;
+
+    public static void main(String[] args) throws InterruptedException {
+        DispatchStressTest test = new DispatchStressTest();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--threads":
+                    test.mThreads = Integer.parseInt(value);
+                    break;
+                case "--operations":
+                    test.mOperations = Integer.parseInt(value);
+                    break;
+                case "--soak":
+                    test.mSoakSeconds = Long.parseLong(value);
+                    break;
+                case "--deadline":
+                    test.mDeadlineMillis = Long.parseLong(value);
+                    break;
+                case "--latency":
+                    test.mMedianLatencyMillis = Long.parseLong(value);
+                    break;
+                case "--p99":
+                    test.mP99LatencyMillis = Long.parseLong(value);
+                    break;
+                case "--seed":
+                    test.mSeed = Long.parseLong(value);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        System.exit(test.run() ? 0 : 1);
+    }
+
+    private boolean run() throws InterruptedException {
+        OperationDispatcher dispatcher = new OperationDispatcher(mDeadlineMillis, null);
+        dispatcher.setRetryPolicy(2, 5, 50);
+        dispatcher.configureCredentialCache(50, 8);
+        dispatcher.configureSaveDeduplication(50, 64);
+        // Every operation of a round fits in the queue, so none is expected to be rejected.
+        dispatcher.configureAdmission(256, 128, mOperations, AdmissionController.POLICY_QUEUE);
+        CredentialsEmulator emulator = new CredentialsEmulator(dispatcher)
+                .setSeed(mSeed)
+                .setLatency(CredentialsEmulator.LATENCY_LOG_NORMAL, mMedianLatencyMillis,
+                        mP99LatencyMillis)
+                .setResolution(CredentialsEmulator.RESOLUTION_ACCEPT, 1)
+                .injectStatus(CredentialsEmulator.REQUEST_LOAD, StatusCodes.NETWORK_ERROR, 0.02)
+                .injectStatus(CredentialsEmulator.REQUEST_SAVE, StatusCodes.RESOLUTION_REQUIRED,
+                        0.05)
+                .injectStatus(CredentialsEmulator.REQUEST_DELETE, StatusCodes.INTERNAL_ERROR,
+                        0.02);
+        for (String accountType : ACCOUNT_TYPES) {
+            emulator.addCredential("user@example.com", null, accountType, "User", null);
+        }
+
+        long startNanos = System.nanoTime();
+        long deadline = startNanos + TimeUnit.SECONDS.toNanos(mSoakSeconds);
+        long warmHeap = -1;
+        long lastHeap = 0;
+        boolean passed = true;
+        int round = 0;
+        do {
+            passed &= round(dispatcher, emulator, ++round);
+            if (mSoakSeconds > 0 && System.nanoTime() - startNanos > WARM_UP_NANOS) {
+                lastHeap = usedHeap();
+                if (warmHeap < 0) {
+                    warmHeap = lastHeap;
+                }
+            }
+        } while (passed && System.nanoTime() - deadline < 0);
+
+        if (warmHeap >= 0) {
+            long growth = lastHeap - warmHeap;
+            System.out.println("soak: " + round + " rounds, heap after warm-up "
+                    + warmHeap / 1024 + " KB -> " + lastHeap / 1024 + " KB");
+            if (growth > MAX_HEAP_GROWTH_BYTES) {
+                System.out.println("FAIL: the heap grew by " + growth / 1024 + " KB");
+                passed = false;
+            }
+        }
+        System.out.println(passed ? "PASS" : "FAIL");
+        return passed;
+    }
+
+    /**
+     * Runs one round of operations and checks its results.
+     */
+    private boolean round(final OperationDispatcher dispatcher, final CredentialsBackend backend,
+                          int round) throws InterruptedException {
+        final AtomicIntegerArray calls = new AtomicIntegerArray(mOperations);
+        final AtomicLongArray latencies = new AtomicLongArray(mOperations);
+        final AtomicIntegerArray resultCodes = new AtomicIntegerArray(mOperations);
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch completed = new CountDownLatch(mOperations);
+        final CountDownLatch started = new CountDownLatch(mThreads);
+        final long seed = mSeed * 31 + round;
+
+        long startNanos = System.nanoTime();
+        for (int t = 0; t < mThreads; t++) {
+            final Random random = new Random(seed * 1009 + t);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while ((index = next.getAndIncrement()) < calls.length()) {
+                        start(dispatcher, backend, random, index, calls, latencies, resultCodes,
+                                completed);
+                    }
+                    started.countDown();
+                }
+            }, "SmartLockStress-" + t);
+            thread.start();
+        }
+        started.await();
+        boolean drained = completed.await(60, TimeUnit.SECONDS);
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        boolean passed = true;
+        if (!drained) {
+            System.out.println("FAIL: " + completed.getCount() + " handlers never called");
+            passed = false;
+        }
+        int duplicates = 0;
+        for (int i = 0; i < calls.length(); i++) {
+            if (calls.get(i) > 1) {
+                duplicates++;
+            }
+        }
+        if (duplicates > 0) {
+            System.out.println("FAIL: " + duplicates + " handlers called more than once");
+            passed = false;
+        }
+        // The last handler can run just before its operation is removed from the registry, and
+        // an operation that timed out or was canceled keeps its admission slot until its
+        // backend call returns.
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+        while ((dispatcher.pendingCount() > 0 || !drained(dispatcher.admissionSnapshot(false)))
+                && System.nanoTime() - drainDeadline < 0) {
+            Thread.sleep(1);
+        }
+        if (dispatcher.pendingCount() != 0) {
+            System.out.println("FAIL: " + dispatcher.pendingCount()
+                    + " handlers left in the registry");
+            passed = false;
+        }
+        long[] admission = dispatcher.admissionSnapshot(true);
+        if (!drained(admission)) {
+            System.out.println("FAIL: admission left " + Arrays.toString(admission));
+            passed = false;
+        }
+
+        long[][] outcomeLatencies = new long[OUTCOME_NAMES.length][mOperations];
+        int[] outcomeCounts = new int[OUTCOME_NAMES.length];
+        Map<Integer, Integer> results = new TreeMap<>();
+        for (int i = 0; i < mOperations; i++) {
+            int resultCode = resultCodes.get(i);
+            int outcome = outcomeOf(resultCode);
+            outcomeLatencies[outcome][outcomeCounts[outcome]++] = latencies.get(i);
+            Integer count = results.get(resultCode);
+            results.put(resultCode, count == null ? 1 : count + 1);
+        }
+        if (outcomeCounts[OUTCOME_REJECTED] > 0) {
+            System.out.println("FAIL: " + outcomeCounts[OUTCOME_REJECTED]
+                    + " operations rejected by the admission caps");
+            passed = false;
+        }
+        StringBuilder latency = new StringBuilder();
+        for (int outcome = 0; outcome < OUTCOME_NAMES.length; outcome++) {
+            int count = outcomeCounts[outcome];
+            if (count == 0) {
+                continue;
+            }
+            long[] sorted = Arrays.copyOf(outcomeLatencies[outcome], count);
+            Arrays.sort(sorted);
+            latency.append(String.format("%n  %-8s %6d, latency p50 %.2f ms, p99 %.2f ms, "
+                            + "max %.2f ms", OUTCOME_NAMES[outcome], count,
+                    percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6,
+                    sorted[count - 1] / 1e6));
+        }
+        System.out.println(String.format("round %d: %d operations on %d threads in %d ms, "
+                        + "%.0f ops/s, max queued %d, result codes %s%s",
+                round, mOperations, mThreads, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                mOperations * 1e9 / elapsedNanos, admission[AdmissionController.STAT_MAX_QUEUED],
+                results, latency));
+        return passed;
+    }
+
+    /**
+     * Starts one operation: mostly loads, then saves and deletes, a few with a short deadline
+     * and a few canceled right away.
+     */
+    private static void start(OperationDispatcher dispatcher, CredentialsBackend backend,
+                              Random random, final int index, final AtomicIntegerArray calls,
+                              final AtomicLongArray latencies,
+                              final AtomicIntegerArray resultCodes,
+                              final CountDownLatch completed) {
+        final long startNanos = System.nanoTime();
+        SmartLockSupportResponseHandler handler = new SmartLockSupportResponseHandler() {
+            @Override
+            public void OnResult(int resultCode, String id, String password, String name,
+                                 String accountType, String profilePictureURL) {
+                if (calls.incrementAndGet(index) == 1) {
+                    latencies.set(index, System.nanoTime() - startNanos);
+                    resultCodes.set(index, resultCode);
+                    completed.countDown();
+                }
+            }
+        };
+        String accountType = ACCOUNT_TYPES[random.nextInt(ACCOUNT_TYPES.length)];
+        long timeoutMillis = random.nextInt(100) < 2 ? 10 : 0;
+        int kind = random.nextInt(100);
+        long operationId;
+        if (kind < 60) {
+            operationId = dispatcher.load(backend, handler, timeoutMillis,
+                    OperationDispatcher.DEFAULT_RETRIES, accountType);
+        } else if (kind < 85) {
+            operationId = dispatcher.save(backend, handler, timeoutMillis,
+                    OperationDispatcher.DEFAULT_RETRIES, "user@example.com",
+                    "password" + random.nextInt(4), accountType, "User", null);
+        } else {
+            operationId = dispatcher.delete(backend, handler, timeoutMillis,
+                    OperationDispatcher.DEFAULT_RETRIES, "user" + random.nextInt(4)
+                            + "@example.com", null, accountType);
+        }
+        if (operationId != 0 && random.nextInt(100) < 3) {
+            dispatcher.cancel(operationId);
+        }
+    }
+
+    private static int outcomeOf(int resultCode) {
+        switch (resultCode) {
+            case StatusCodes.SUCCESS:
+            case StatusCodes.SUCCESS_CACHE:
+                return OUTCOME_SUCCESS;
+            case StatusCodes.TOO_MANY_OPERATIONS:
+            case StatusCodes.REPLACED:
+                return OUTCOME_REJECTED;
+            case StatusCodes.TIMEOUT:
+                return OUTCOME_TIMEOUT;
+            default:
+                return OUTCOME_OTHER;
+        }
+    }
+
+    private static boolean drained(long[] admission) {
+        return admission[AdmissionController.STAT_IN_FLIGHT] == 0
+                && admission[AdmissionController.STAT_QUEUED] == 0;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
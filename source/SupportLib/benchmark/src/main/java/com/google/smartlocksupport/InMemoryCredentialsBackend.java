@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smartlocksupport;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A CredentialsBackend keeping the credentials in memory and reporting each result before
+ * returning, so the benchmarks measure the dispatch path and nothing else.
+ */
+class InMemoryCredentialsBackend implements CredentialsBackend {
+
+    // account type and id -> id, password, name, account type, profile picture.
+    private final ConcurrentHashMap<String, String[]> mCredentials = new ConcurrentHashMap<>();
+    private final OperationDispatcher mDispatcher;
+
+    InMemoryCredentialsBackend(OperationDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    @Override
+    public void load(long operationId, String... accountTypes) {
+        for (String[] credential : mCredentials.values()) {
+            if (matches(credential[3], accountTypes)) {
+                mDispatcher.deliverResult(operationId, StatusCodes.SUCCESS, credential[0],
+                        credential[1], credential[2], credential[3], credential[4]);
+                return;
+            }
+        }
+        mDispatcher.deliverResult(operationId, StatusCodes.ERROR, null, null, null, null, null);
+    }
+
+    @Override
+    public void prefetch(long operationId, String... accountTypes) {
+        // Nothing here needs a resolution.
+        load(operationId, accountTypes);
+    }
+
+    @Override
+    public void save(long operationId, String id, String password, String accountType,
+                     String name, String profilePictureURL) {
+        mCredentials.put(key(id, accountType),
+                new String[]{id, password, name, accountType, profilePictureURL});
+        mDispatcher.deliverResult(operationId, StatusCodes.SUCCESS, null, null, null, null, null);
+    }
+
+    @Override
+    public void delete(long operationId, String id, String password, String accountType) {
+        int resultCode = mCredentials.remove(key(id, accountType)) != null
+                ? StatusCodes.SUCCESS : StatusCodes.ERROR;
+        mDispatcher.deliverResult(operationId, resultCode, null, null, null, null, null);
+    }
+
+    private static String key(String id, String accountType) {
+        return (accountType != null ? accountType : "") + '\n' + id;
+    }
+
+    private static boolean matches(String accountType, String... accountTypes) {
+        if (accountTypes == null || accountTypes.length == 0) {
+            return true;
+        }
+        for (String candidate : accountTypes) {
+            if (candidate != null ? candidate.equals(accountType) : accountType == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
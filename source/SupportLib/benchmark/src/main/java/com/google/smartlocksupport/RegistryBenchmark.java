@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smartlocksupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the response handler registry: registering and completing an operation, and looking
+ * up whether an operation is still waiting while other operations are in flight.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RegistryBenchmark {
+
+    private static final SmartLockSupportResponseHandler NO_OP_HANDLER =
+            new SmartLockSupportResponseHandler() {
+                @Override
+                public void OnResult(int resultCode, String id, String password, String name,
+                                     String accountType, String profilePictureURL) {
+                }
+            };
+
+    // operations in flight while looking up.
+    @Param({"1", "64", "1024"})
+    public int inFlight;
+
+    private ResponseHandlerRegistry mRegistry;
+    private long[] mIds;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mRegistry = new ResponseHandlerRegistry(ResponseHandlerRegistry.DEFAULT_EXPIRY_MS, null);
+        mIds = new long[inFlight];
+        for (int i = 0; i < inFlight; i++) {
+            // These never complete, so they must outlive the benchmark.
+            mIds[i] = mRegistry.register(NO_OP_HANDLER, SmartLockSupportTraceListener.OP_READ,
+                    TimeUnit.DAYS.toMillis(1));
+        }
+    }
+
+    @Benchmark
+    public boolean registerAndComplete() {
+        long id = mRegistry.register(NO_OP_HANDLER, SmartLockSupportTraceListener.OP_SAVE, 0);
+        return mRegistry.complete(id, StatusCodes.SUCCESS, null, null, null, null, null);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean registerAndCompleteContended() {
+        long id = mRegistry.register(NO_OP_HANDLER, SmartLockSupportTraceListener.OP_SAVE, 0);
+        return mRegistry.complete(id, StatusCodes.SUCCESS, null, null, null, null, null);
+    }
+
+    @Benchmark
+    public boolean lookup() {
+        int next = mNext;
+        mNext = next + 1 < mIds.length ? next + 1 : 0;
+        return mRegistry.contains(mIds[next]);
+    }
+}
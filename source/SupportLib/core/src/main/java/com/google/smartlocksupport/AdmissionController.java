@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Caps the number of operations whose backend call is in flight, overall and for each kind of
+ * operation (load, save, delete).  What happens to an operation over the caps depends on the
+ * policy: it waits in a queue for a slot, fails right away, or replaces the oldest operation of
+ * the same kind in flight.  The queue has its own cap, past which operations fail.  There are no
+ * caps until configured.
+ * <p/>
+ * The controller only tracks operation ids.  The dispatcher starts the operations it admits and
+ * reports each backend call that returns to release(), which admits the next queued operation.
+ * A replaced operation keeps its slot until then, and the operation replacing it waits in the
+ * queue for that slot, so the caps hold for the calls actually made to the backend.
+ */
+class AdmissionController {
+
+    static final int POLICY_QUEUE = 0;
+    static final int POLICY_REJECT = 1;
+    static final int POLICY_REPLACE_OLDEST = 2;
+
+    // What admit() returns, other than the id of a replaced operation.
+    static final long ADMITTED = -1;
+    static final long QUEUED = -2;
+    static final long REJECTED = -3;
+
+    // The layout of snapshot().
+    static final int STAT_IN_FLIGHT = 0;
+    static final int STAT_QUEUED = 1;
+    static final int STAT_MAX_QUEUED = 2;
+    static final int STAT_REJECTED = 3;
+    static final int STAT_REPLACED = 4;
+    static final int STAT_COUNT = 5;
+
+    private static final int OP_COUNT = 3;
+
+    private int mMaxInFlight = Integer.MAX_VALUE;
+    private int mMaxInFlightPerOp = Integer.MAX_VALUE;
+    private int mMaxQueue = Integer.MAX_VALUE;
+    private int mPolicy = POLICY_QUEUE;
+
+    // The operations in flight for each kind, oldest first, and the ones waiting for a slot.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final LinkedHashSet<Long>[] mInFlight = new LinkedHashSet[OP_COUNT];
+    private int mInFlightCount;
+    private final ArrayDeque<Queued> mQueue = new ArrayDeque<>();
+    // The operations in flight that were replaced, and still hold their slot.
+    private final HashSet<Long> mReplacedIds = new HashSet<>();
+
+    private long mMaxQueued;
+    private long mRejected;
+    private long mReplaced;
+
+    AdmissionController() {
+        for (int i = 0; i < OP_COUNT; i++) {
+            mInFlight[i] = new LinkedHashSet<>();
+        }
+    }
+
+    /**
+     * Sets the caps and the policy.  Operations already in flight or queued are not affected,
+     * but the next ones released admit queued operations up to the new caps.
+     *
+     * @param maxInFlight      - the maximum number of operations in flight, 0 for no cap.
+     * @param maxInFlightPerOp - the maximum number of operations of each kind in flight, 0 for
+     *                         no cap.
+     * @param maxQueued        - the maximum number of operations waiting for a slot, 0 for no
+     *                         cap.  Operations past it are rejected.
+     * @param policy           - one of the POLICY_ constants.
+     */
+    synchronized void configure(int maxInFlight, int maxInFlightPerOp, int maxQueued,
+                                int policy) {
+        if (policy < POLICY_QUEUE || policy > POLICY_REPLACE_OLDEST) {
+            throw new IllegalArgumentException("Unknown admission policy: " + policy);
+        }
+        mMaxInFlight = maxInFlight > 0 ? maxInFlight : Integer.MAX_VALUE;
+        mMaxInFlightPerOp = maxInFlightPerOp > 0 ? maxInFlightPerOp : Integer.MAX_VALUE;
+        mMaxQueue = maxQueued > 0 ? maxQueued : Integer.MAX_VALUE;
+        mPolicy = policy;
+    }
+
+    /**
+     * Decides whether an operation can start its backend call now.
+     *
+     * @param id - the id of the operation.
+     * @param op - the operation, one of the SmartLockSupportTraceListener OP_ constants.
+     * @return ADMITTED if it can start, QUEUED if it waits for release() to admit it, REJECTED
+     * if it is to fail, or the id of the operation it replaces, which is to be completed.  The
+     * new operation then waits in the queue until release() of the replaced one admits it.
+     */
+    synchronized long admit(long id, int op) {
+        int opIndex = OperationMetrics.opIndex(op);
+        if (opIndex < 0) {
+            return ADMITTED;
+        }
+        if (fits(opIndex)) {
+            add(id, opIndex);
+            return ADMITTED;
+        }
+        switch (mPolicy) {
+            case POLICY_QUEUE:
+                if (mQueue.size() >= mMaxQueue) {
+                    mRejected++;
+                    return REJECTED;
+                }
+                mQueue.add(new Queued(id, opIndex));
+                mMaxQueued = Math.max(mMaxQueued, mQueue.size());
+                return QUEUED;
+            case POLICY_REPLACE_OLDEST:
+                for (long inFlight : mInFlight[opIndex]) {
+                    if (mReplacedIds.add(inFlight)) {
+                        mQueue.add(new Queued(id, opIndex));
+                        mMaxQueued = Math.max(mMaxQueued, mQueue.size());
+                        mReplaced++;
+                        return inFlight;
+                    }
+                }
+                // Nothing of the same kind left to replace, or the other kinds use all the
+                // slots.
+                mRejected++;
+                return REJECTED;
+            default:
+                mRejected++;
+                return REJECTED;
+        }
+    }
+
+    /**
+     * Releases the slot of an operation whose backend call returned, or that is not to make it,
+     * or removes the operation from the queue.
+     *
+     * @param id - the id of the operation.
+     * @param op - the operation, one of the SmartLockSupportTraceListener OP_ constants.
+     * @return the id of the queued operation admitted in its place, to be started, or 0.
+     */
+    synchronized long release(long id, int op) {
+        int opIndex = OperationMetrics.opIndex(op);
+        if (opIndex < 0) {
+            return 0;
+        }
+        if (!mInFlight[opIndex].remove(id)) {
+            Iterator<Queued> it = mQueue.iterator();
+            while (it.hasNext()) {
+                if (it.next().mId == id) {
+                    it.remove();
+                    break;
+                }
+            }
+            return 0;
+        }
+        mReplacedIds.remove(id);
+        mInFlightCount--;
+        Iterator<Queued> it = mQueue.iterator();
+        while (it.hasNext()) {
+            Queued queued = it.next();
+            if (fits(queued.mOpIndex)) {
+                it.remove();
+                add(queued.mId, queued.mOpIndex);
+                return queued.mId;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the admission counters: operations in flight and queued now, the most queued at
+     * once, and the operations rejected and replaced.
+     *
+     * @param reset - true to reset the maximum and the counters after reading them.
+     */
+    synchronized long[] snapshot(boolean reset) {
+        long[] snapshot = new long[STAT_COUNT];
+        snapshot[STAT_IN_FLIGHT] = mInFlightCount;
+        snapshot[STAT_QUEUED] = mQueue.size();
+        snapshot[STAT_MAX_QUEUED] = mMaxQueued;
+        snapshot[STAT_REJECTED] = mRejected;
+        snapshot[STAT_REPLACED] = mReplaced;
+        if (reset) {
+            mMaxQueued = mQueue.size();
+            mRejected = 0;
+            mReplaced = 0;
+        }
+        return snapshot;
+    }
+
+    private boolean fits(int opIndex) {
+        return mInFlightCount < mMaxInFlight && mInFlight[opIndex].size() < mMaxInFlightPerOp;
+    }
+
+    private void add(long id, int opIndex) {
+        mInFlight[opIndex].add(id);
+        mInFlightCount++;
+    }
+
+    private static final class Queued {
+        final long mId;
+        final int mOpIndex;
+
+        Queued(long id, int opIndex) {
+            mId = id;
+            mOpIndex = opIndex;
+        }
+    }
+}
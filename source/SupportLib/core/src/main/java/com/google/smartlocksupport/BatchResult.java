@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+/**
+ * Collects the results of the operations of a batch and calls the batch response handler once
+ * they have all completed.  Each operation of the batch is given its own response handler from
+ * item(), so the operations go through the registry like any other.
+ */
+class BatchResult {
+
+    private static final String TAG = "SmartLockBatch";
+
+    private final SmartLockSupportBatchResponseHandler mResponseHandler;
+    private final int[] mResultCodes;
+    private int mRemaining;
+
+    BatchResult(SmartLockSupportBatchResponseHandler responseHandler, int count) {
+        mResponseHandler = responseHandler;
+        mResultCodes = new int[count];
+        mRemaining = count;
+    }
+
+    /**
+     * Returns the response handler for the operation at the given position in the batch.
+     */
+    SmartLockSupportResponseHandler item(final int index) {
+        return new SmartLockSupportResponseHandler() {
+            @Override
+            public void OnResult(int resultCode, String id, String password, String name,
+                                 String accountType, String profilePictureURL) {
+                onItemResult(index, resultCode);
+            }
+        };
+    }
+
+    /**
+     * Calls the batch response handler if the batch is empty.
+     */
+    void completeIfEmpty() {
+        if (mResultCodes.length == 0) {
+            callback();
+        }
+    }
+
+    private void onItemResult(int index, int resultCode) {
+        synchronized (this) {
+            mResultCodes[index] = resultCode;
+            if (--mRemaining > 0) {
+                return;
+            }
+        }
+        callback();
+    }
+
+    private void callback() {
+        int resultCode = StatusCodes.SUCCESS;
+        int[] resultCodes;
+        synchronized (this) {
+            resultCodes = mResultCodes.clone();
+        }
+        for (int code : resultCodes) {
+            if (code != StatusCodes.SUCCESS) {
+                resultCode = code;
+                break;
+            }
+        }
+        try {
+            mResponseHandler.OnBatchResult(resultCode, resultCodes);
+        } catch (Throwable t) {
+            if (SupportLog.isLoggable(SupportLog.WARN)) {
+                SupportLog.w(TAG, "Caught throwable calling batch responseHandler: "
+                        + t.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smartlocksupport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops new requests from reaching the Credentials API after a run of transient failures, so a
+ * broken Google Play services is not hammered with connects and retries.  After the open period,
+ * a single request is let through as a probe; if the backend answers it with anything but a
+ * transient failure the breaker closes, and if it fails it opens again.  While the breaker is
+ * open, only the result of the probe changes its state: requests made before it opened can still
+ * be answering late, and those answers say nothing about the backend now.
+ * <p/>
+ * All the methods are synchronized, so it can be used from any thread.
+ */
+class CircuitBreaker {
+
+    private int mFailureThreshold;
+    private long mOpenNanos;
+
+    private int mFailures;
+    private boolean mOpen;
+    private long mOpenedAtNanos;
+    private boolean mProbing;
+    // The operation whose request is the probe, valid while mProbing.
+    private long mProbeId;
+    private long mProbeStartedNanos;
+
+    /**
+     * @param failureThreshold - the number of transient failures in a row that opens the breaker,
+     *                         0 to never open it.
+     * @param openMillis       - how long the breaker stays open before letting a request through.
+     */
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        configure(failureThreshold, openMillis);
+    }
+
+    synchronized void configure(int failureThreshold, long openMillis) {
+        mFailureThreshold = Math.max(0, failureThreshold);
+        mOpenNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, openMillis));
+        if (mFailureThreshold == 0) {
+            close();
+        }
+    }
+
+    /**
+     * Returns true if a request can be made now.  While the breaker is open this returns false,
+     * except for one request once the open period is over, which becomes the probe.
+     *
+     * @param operationId - the operation making the request.
+     */
+    synchronized boolean allowRequest(long operationId) {
+        if (!mOpen) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - mOpenedAtNanos < mOpenNanos) {
+            return false;
+        }
+        // A probe that never reported back does not keep the breaker open forever.
+        if (mProbing && mProbeId != operationId && now - mProbeStartedNanos < mOpenNanos) {
+            return false;
+        }
+        mProbing = true;
+        mProbeId = operationId;
+        mProbeStartedNanos = now;
+        return true;
+    }
+
+    /**
+     * Called when a request got an answer other than a transient failure, such as a success, a
+     * resolution or a cancel.  This closes the breaker if it is closed or this is the probe.
+     */
+    synchronized void onSuccess(long operationId) {
+        if (!mOpen || isProbe(operationId)) {
+            close();
+        }
+    }
+
+    /**
+     * Called when a request failed with a transient error.  This opens the breaker after enough
+     * failures in a row, or again if this is the probe.
+     */
+    synchronized void onFailure(long operationId) {
+        if (mOpen) {
+            if (isProbe(operationId)) {
+                mProbing = false;
+                mOpenedAtNanos = System.nanoTime();
+            }
+            return;
+        }
+        mFailures++;
+        if (mFailureThreshold > 0 && mFailures >= mFailureThreshold) {
+            mOpen = true;
+            mProbing = false;
+            mOpenedAtNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called when an operation ended without its request being answered, such as when it was
+     * canceled before the request was issued.  If it was the probe, the next request probes.
+     */
+    synchronized void onNoAnswer(long operationId) {
+        if (isProbe(operationId)) {
+            mProbing = false;
+        }
+    }
+
+    synchronized boolean isOpen() {
+        return mOpen;
+    }
+
+    private boolean isProbe(long operationId) {
+        return mOpen && mProbing && mProbeId == operationId;
+    }
+
+    private void close() {
+        mFailures = 0;
+        mOpen = false;
+        mProbing = false;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * Writes the results of operations into a direct ByteBuffer registered by the caller, so a
+ * native caller (such as Unity) can read many results with one call to poll() and plain memory
+ * reads, instead of one call into a proxy object with six Strings per result.
+ * <p/>
+ * All the values are in the native byte order.  The buffer starts with a 16 byte header:
+ * <pre>
+ *   0: int  offset of the first record of the batch
+ *   4: int  offset just past the last record of the batch
+ *   8: int  number of records in the batch
+ *  12: int  number of results waiting for space in the buffer
+ * </pre>
+ * followed by the records, each aligned to 8 bytes:
+ * <pre>
+ *   0: int  length of the record, including any padding
+ *   4: int  result code
+ *   8: long request id given when the operation was started
+ *  16: the credential id, password, name, account type and profile picture URL, each an int
+ *      length (-1 for null) followed by that many bytes of UTF-8
+ * </pre>
+ * A length of 0, or reaching the end of the buffer, means the next record is right after the
+ * header.  The batch returned by poll() stays untouched until the next call to poll(), so read
+ * it before calling poll() again.  Results that do not fit wait in memory until the reader
+ * frees space, and are never dropped.  A result written straight to the buffer allocates
+ * nothing; only a waiting one is kept as an object.
+ * <p/>
+ * A reader that cannot address the buffer memory, such as a Unity version without
+ * GetDirectBufferAddress, passes an array to poll(byte[]) and reads the same layout from it.
+ */
+class CompletionQueue {
+
+    static final int HEADER_SIZE = 16;
+    static final int MIN_CAPACITY = 1024;
+
+    private static final int OFFSET_BATCH_START = 0;
+    private static final int OFFSET_BATCH_END = 4;
+    private static final int OFFSET_BATCH_COUNT = 8;
+    private static final int OFFSET_WAITING = 12;
+
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int FIELD_COUNT = 5;
+
+    // written for a char that is not valid UTF-16, as CodingErrorAction.REPLACE would.
+    private static final byte REPLACEMENT = '?';
+
+    // A private view of the caller's buffer, so its position and limit are ours.
+    private final ByteBuffer mBuffer;
+    private final int mEnd;
+
+    // The bytes between mHead and mTail are in use, the published batch followed by the records
+    // written since.  mUsed tells a full buffer from an empty one, and counts the bytes skipped
+    // when a record wraps to the start.
+    private int mHead = HEADER_SIZE;
+    private int mTail = HEADER_SIZE;
+    private int mUsed;
+    private int mPublishedEnd = HEADER_SIZE;
+    private int mPublishedBytes;
+    private int mUnpublishedBytes;
+    private int mUnpublishedCount;
+
+    // results that did not fit, in order.
+    private final ArrayDeque<Result> mWaiting = new ArrayDeque<>();
+
+    /**
+     * @param buffer - the direct buffer to write the results to, at least MIN_CAPACITY bytes.
+     */
+    CompletionQueue(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("The completion buffer must be direct");
+        }
+        if (buffer.capacity() < MIN_CAPACITY) {
+            throw new IllegalArgumentException("The completion buffer must have at least "
+                    + MIN_CAPACITY + " bytes");
+        }
+        mBuffer = buffer.duplicate().order(ByteOrder.nativeOrder());
+        mEnd = HEADER_SIZE + ((buffer.capacity() - HEADER_SIZE) & ~7);
+        publish(0);
+    }
+
+    /**
+     * Returns a response handler that writes the result of an operation to the queue.
+     *
+     * @param requestId - the id written with the result, chosen by the caller.
+     */
+    SmartLockSupportResponseHandler handler(final long requestId) {
+        return new SmartLockSupportResponseHandler() {
+            @Override
+            public void OnResult(int resultCode, String id, String password, String name,
+                                 String accountType, String profilePictureURL) {
+                offer(requestId, resultCode, id, password, name, accountType,
+                        profilePictureURL);
+            }
+        };
+    }
+
+    /**
+     * Writes a result to the buffer, or keeps it until there is space.
+     */
+    synchronized void offer(long requestId, int resultCode, String id, String password,
+                            String name, String accountType, String profilePictureURL) {
+        if (!mWaiting.isEmpty() || !write(requestId, resultCode, id, password, name,
+                accountType, profilePictureURL)) {
+            mWaiting.add(new Result(requestId, resultCode, id, password, name, accountType,
+                    profilePictureURL));
+        }
+    }
+
+    /**
+     * Frees the batch returned by the previous call and publishes the records written since
+     * in the header of the buffer.
+     *
+     * @return the number of records in the new batch.
+     */
+    synchronized int poll() {
+        mHead = mPublishedEnd;
+        mUsed -= mPublishedBytes;
+        while (!mWaiting.isEmpty() && write(mWaiting.peek())) {
+            mWaiting.poll();
+        }
+        int count = mUnpublishedCount;
+        publish(count);
+        mPublishedEnd = mTail;
+        mPublishedBytes = mUnpublishedBytes;
+        mUnpublishedBytes = 0;
+        mUnpublishedCount = 0;
+        return count;
+    }
+
+    /**
+     * Like poll(), and also copies the header and the new batch to the same offsets of the
+     * array, for a reader that cannot address the buffer memory.  The rest of the array is left
+     * as it was.
+     *
+     * @param destination - an array at least as long as the capacity of the buffer.
+     * @return the number of records in the new batch.
+     */
+    synchronized int poll(byte[] destination) {
+        if (destination.length < mEnd) {
+            throw new IllegalArgumentException("The array must have at least " + mEnd
+                    + " bytes");
+        }
+        int count = poll();
+        copy(0, HEADER_SIZE, destination);
+        if (count == 0) {
+            return 0;
+        }
+        if (mHead < mTail) {
+            copy(mHead, mTail, destination);
+        } else {
+            copy(mHead, mEnd, destination);
+            copy(HEADER_SIZE, mTail, destination);
+        }
+        return count;
+    }
+
+    private void copy(int start, int end, byte[] destination) {
+        mBuffer.limit(end);
+        mBuffer.position(start);
+        mBuffer.get(destination, start, end - start);
+        // the absolute puts are checked against the limit.
+        mBuffer.clear();
+    }
+
+    private void publish(int count) {
+        mBuffer.putInt(OFFSET_BATCH_START, mHead);
+        mBuffer.putInt(OFFSET_BATCH_END, mTail);
+        mBuffer.putInt(OFFSET_BATCH_COUNT, count);
+        mBuffer.putInt(OFFSET_WAITING, mWaiting.size());
+    }
+
+    private boolean write(Result result) {
+        return write(result.mRequestId, result.mResultCode, result.mId, result.mPassword,
+                result.mName, result.mAccountType, result.mProfilePictureURL);
+    }
+
+    private boolean write(long requestId, int resultCode, String id, String password,
+                          String name, String accountType, String profilePictureURL) {
+        long chars = length(id) + length(password) + length(name) + length(accountType)
+                + length(profilePictureURL);
+        int size = maxRecordSize(chars);
+        if (size > mEnd - HEADER_SIZE) {
+            // It could never fit, so only the result code is delivered.
+            id = password = name = accountType = profilePictureURL = null;
+            size = maxRecordSize(0);
+        }
+        int position = reserve(size);
+        if (position < 0) {
+            return false;
+        }
+        int next = position + RECORD_HEADER_SIZE;
+        next = putString(next, id);
+        next = putString(next, password);
+        next = putString(next, name);
+        next = putString(next, accountType);
+        next = putString(next, profilePictureURL);
+        int length = align(next - position);
+        mBuffer.putInt(position, length);
+        mBuffer.putInt(position + 4, resultCode);
+        mBuffer.putLong(position + 8, requestId);
+        mTail = position + length;
+        mUsed += length;
+        mUnpublishedBytes += length;
+        mUnpublishedCount++;
+        return true;
+    }
+
+    /**
+     * Returns the offset where a record of the size can be written, wrapping to the start of
+     * the buffer if needed, or -1 if there is no space.
+     */
+    private int reserve(int size) {
+        if (mUsed == 0) {
+            mHead = mTail = mPublishedEnd = HEADER_SIZE;
+        }
+        if (mTail > mHead || mUsed == 0) {
+            if (mEnd - mTail >= size) {
+                return mTail;
+            }
+            if (mHead - HEADER_SIZE < size) {
+                return -1;
+            }
+            int skipped = mEnd - mTail;
+            if (skipped > 0) {
+                mBuffer.putInt(mTail, 0);
+            }
+            mUsed += skipped;
+            mUnpublishedBytes += skipped;
+            mTail = HEADER_SIZE;
+            return mTail;
+        }
+        return mHead - mTail >= size ? mTail : -1;
+    }
+
+    private int putString(int position, String value) {
+        if (value == null) {
+            mBuffer.putInt(position, -1);
+            return position + 4;
+        }
+        // Encoded by hand with absolute puts, a CharsetEncoder needs a CharBuffer per string.
+        int start = position + 4;
+        int next = start;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                mBuffer.put(next++, (byte) c);
+            } else if (c < 0x800) {
+                mBuffer.put(next++, (byte) (0xc0 | (c >> 6)));
+                mBuffer.put(next++, (byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                mBuffer.put(next++, (byte) (0xf0 | (codePoint >> 18)));
+                mBuffer.put(next++, (byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                mBuffer.put(next++, (byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                mBuffer.put(next++, (byte) (0x80 | (codePoint & 0x3f)));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                mBuffer.put(next++, REPLACEMENT);
+            } else {
+                mBuffer.put(next++, (byte) (0xe0 | (c >> 12)));
+                mBuffer.put(next++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+                mBuffer.put(next++, (byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        mBuffer.putInt(position, next - start);
+        return next;
+    }
+
+    private static int maxRecordSize(long chars) {
+        // UTF-8 takes at most 3 bytes for each char, surrogate pairs take 4 for two.
+        return (int) Math.min(Integer.MAX_VALUE - 8,
+                align(RECORD_HEADER_SIZE + FIELD_COUNT * 4 + 3 * chars));
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * The result of an operation.
+     */
+    static final class Result {
+        final long mRequestId;
+        final int mResultCode;
+        final String mId;
+        final String mPassword;
+        final String mName;
+        final String mAccountType;
+        final String mProfilePictureURL;
+
+        Result(long requestId, int resultCode, String id, String password, String name,
+               String accountType, String profilePictureURL) {
+            mRequestId = requestId;
+            mResultCode = resultCode;
+            mId = id;
+            mPassword = password;
+            mName = name;
+            mAccountType = accountType;
+            mProfilePictureURL = profilePictureURL;
+        }
+    }
+}
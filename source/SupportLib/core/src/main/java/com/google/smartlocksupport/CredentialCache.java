@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory cache of the credentials returned by loads, keyed by the normalized account types
+ * of the load (see LoadCoalescer.normalize).  The cache is disabled until configured with a
+ * positive time to live.
+ * <p/>
+ * Saves and deletes invalidate the entries they could affect when they start, and again when
+ * they complete successfully.  Every invalidation bumps a generation number, and a load can only
+ * store its result if no invalidation happened since it started, so a load racing a delete
+ * never repopulates the cache with the deleted credential, even one answered by the backend
+ * before the delete took effect.
+ */
+class CredentialCache {
+
+    private long mTtlNanos;
+    private int mMaxEntries;
+    private long mGeneration;
+
+    // access ordered, so the eldest entry is the least recently used.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Configures the cache.  A ttl or size of 0 disables the cache and clears it.
+     *
+     * @param ttlMillis  - how long an entry can be served after it is stored.
+     * @param maxEntries - the maximum number of entries kept.
+     */
+    synchronized void configure(long ttlMillis, int maxEntries) {
+        mTtlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+        mMaxEntries = Math.max(0, maxEntries);
+        if (!isEnabled()) {
+            clear();
+        } else {
+            trim();
+        }
+    }
+
+    synchronized boolean isEnabled() {
+        return mTtlNanos > 0 && mMaxEntries > 0;
+    }
+
+    /**
+     * @return the current generation, to pass to put() when the load completes.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns the cached credential for the account types, or null if there is none or it expired.
+     *
+     * @param key - the normalized account types.
+     */
+    synchronized Entry get(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry != null && System.nanoTime() - entry.mExpiresAtNanos >= 0) {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the result of a load, unless the cache was invalidated since the load started.
+     *
+     * @param key        - the normalized account types.
+     * @param generation - the generation when the load started.
+     */
+    synchronized void put(String key, long generation, String id, String password, String name,
+                          String accountType, String profilePictureURL) {
+        if (!isEnabled() || generation != mGeneration) {
+            return;
+        }
+        mEntries.put(key, new Entry(id, password, name, accountType, profilePictureURL,
+                System.nanoTime() + mTtlNanos));
+        trim();
+    }
+
+    /**
+     * Removes the entries a save or delete of the credential could make stale: any entry holding
+     * a credential with the same id, and any entry whose load could return a credential of the
+     * same account type.  Password credentials (no account type) are returned by every load, so
+     * they invalidate everything.
+     *
+     * @param id          - the credential id.
+     * @param accountType - the credential account type, null or empty for a password credential.
+     */
+    synchronized void invalidate(String id, String accountType) {
+        mGeneration++;
+        if (accountType == null || accountType.isEmpty()) {
+            mEntries.clear();
+            return;
+        }
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (covers(e.getKey(), accountType)
+                    || (id != null && id.equals(e.getValue().mId))) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the entries, for example when the user signs out.
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    private void trim() {
+        Iterator<String> it = mEntries.keySet().iterator();
+        while (mEntries.size() > mMaxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    // Returns true if the normalized key contains the account type.
+    private static boolean covers(String key, String accountType) {
+        for (int start = 0; start <= key.length(); ) {
+            int end = key.indexOf('\n', start);
+            if (end < 0) {
+                end = key.length();
+            }
+            if (end - start == accountType.length() && key.startsWith(accountType, start)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * A cached credential.
+     */
+    static final class Entry {
+        final String mId;
+        final String mPassword;
+        final String mName;
+        final String mAccountType;
+        final String mProfilePictureURL;
+        final long mExpiresAtNanos;
+
+        Entry(String id, String password, String name, String accountType,
+              String profilePictureURL, long expiresAtNanos) {
+            mId = id;
+            mPassword = password;
+            mName = name;
+            mAccountType = accountType;
+            mProfilePictureURL = profilePictureURL;
+            mExpiresAtNanos = expiresAtNanos;
+        }
+    }
+}
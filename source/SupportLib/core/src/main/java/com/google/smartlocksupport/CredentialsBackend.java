@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+/**
+ * The implementation of the Credentials API calls used by the OperationDispatcher.  On Android
+ * this is the shared GoogleApiClient, which also shows any resolution the API needs.
+ * <p/>
+ * Each call must eventually report exactly one result for the operation id by calling
+ * OperationDispatcher.deliverResult(), from any thread.  Calls may be made from any thread
+ * and must not block.
+ */
+interface CredentialsBackend {
+
+    /**
+     * Loads the credential for the given account types.
+     *
+     * @param operationId  - the id of the operation.
+     * @param accountTypes - the array of account types to limit the credential returned.
+     */
+    void load(long operationId, String... accountTypes);
+
+    /**
+     * Loads the credential for the given account types, only if that needs no user interaction.
+     * A load that needs a resolution reports RESOLUTION_REQUIRED instead of showing it.
+     *
+     * @param operationId  - the id of the operation.
+     * @param accountTypes - the array of account types to limit the credential returned.
+     */
+    void prefetch(long operationId, String... accountTypes);
+
+    /**
+     * Saves the given credential.
+     *
+     * @param operationId       - the id of the operation.
+     * @param id                - the credential id
+     * @param password          - the credential password.
+     * @param accountType       - the account type
+     * @param name              - the credential display name.
+     * @param profilePictureURL - the profile picture.
+     */
+    void save(long operationId, String id, String password, String accountType, String name,
+              String profilePictureURL);
+
+    /**
+     * Deletes the given credential.
+     *
+     * @param operationId - the id of the operation.
+     * @param id          - the credential id
+     * @param password    - the credential password.
+     * @param accountType - the account type
+     */
+    void delete(long operationId, String id, String password, String accountType);
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory stand-in for the Credentials API, to run the dispatch, resolution and error
+ * paths without Google Play services, including on a plain JVM.  It holds any number of
+ * credentials and answers like the API: a load matching one credential succeeds, a load
+ * matching several needs the user to pick one, and a load matching none needs sign in.
+ * <p/>
+ * Each request completes after a latency drawn from the configured distribution.  Status codes
+ * can be injected for each kind of request with a probability, and a connection failure fails
+ * every request like a GoogleApiClient that cannot connect.  Resolutions are not shown: the
+ * user is emulated picking the first credential or confirming the save, canceling, or the
+ * RESOLUTION_REQUIRED status is reported as is.  Seed the emulator to replay a scenario.
+ * <p/>
+ * The requests complete on a single timer thread, which exits while no request is pending.
+ */
+public final class CredentialsEmulator implements CredentialsBackend {
+
+    public static final int LATENCY_FIXED = 0;
+    public static final int LATENCY_UNIFORM = 1;
+    public static final int LATENCY_LOG_NORMAL = 2;
+
+    // What the emulated user does with a resolution.
+    public static final int RESOLUTION_ACCEPT = 0;
+    public static final int RESOLUTION_CANCEL = 1;
+    public static final int RESOLUTION_REPORT = 2;
+
+    // The kinds of requests, for injectStatus().
+    public static final int REQUEST_LOAD = 0;
+    public static final int REQUEST_SAVE = 1;
+    public static final int REQUEST_DELETE = 2;
+    private static final int REQUEST_KINDS = 3;
+
+    // The status the API reports for a load matching no credential.
+    static final int SIGN_IN_REQUIRED = 4;
+
+    // z of the 99th percentile of the standard normal distribution.
+    private static final double Z_99 = 2.326;
+
+    // How long the timer thread waits for a new request before exiting.
+    private static final long TIMER_KEEP_ALIVE_MS = 1000;
+
+    private final OperationDispatcher mDispatcher;
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    // Guarded by this.
+    private final LinkedHashMap<String, String[]> mCredentials = new LinkedHashMap<>();
+    // Each request draws from its own generator, seeded from this, its operation id and its
+    // retry, so a request draws the same values however requests interleave across threads.
+    private long mSeed = new Random().nextLong();
+    private int mLatencyDistribution = LATENCY_FIXED;
+    private long mLatencyA;
+    private long mLatencyB;
+    private long mResolutionMillis;
+    private int mResolutionOutcome = RESOLUTION_ACCEPT;
+    private boolean mConfirmSaves;
+    private int mConnectionErrorCode = StatusCodes.SUCCESS;
+    private final int[] mInjectedCodes = new int[REQUEST_KINDS];
+    private final double[] mInjectedProbabilities = new double[REQUEST_KINDS];
+
+    CredentialsEmulator(OperationDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SmartLockEmulator");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mTimer.setKeepAliveTime(TIMER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Removes all the credentials and restores the defaults: no latency, resolutions accepted
+     * right away, no confirmation of saves, no injected failures and a new random seed.
+     * Requests in flight complete as configured when they were issued.
+     *
+     * @return this emulator.
+     */
+    public synchronized CredentialsEmulator reset() {
+        mCredentials.clear();
+        mSeed = new Random().nextLong();
+        mLatencyDistribution = LATENCY_FIXED;
+        mLatencyA = 0;
+        mLatencyB = 0;
+        mResolutionMillis = 0;
+        mResolutionOutcome = RESOLUTION_ACCEPT;
+        mConfirmSaves = false;
+        mConnectionErrorCode = StatusCodes.SUCCESS;
+        for (int i = 0; i < REQUEST_KINDS; i++) {
+            mInjectedCodes[i] = 0;
+            mInjectedProbabilities[i] = 0;
+        }
+        return this;
+    }
+
+    /**
+     * Stores a credential, replacing the one with the same id and account type.
+     *
+     * @param id                - the credential id
+     * @param password          - the credential password, null for an account credential.
+     * @param accountType       - the account type, null for a password credential.
+     * @param name              - the credential display name.
+     * @param profilePictureURL - the profile picture.
+     * @return this emulator.
+     */
+    public synchronized CredentialsEmulator addCredential(String id, String password,
+                                                          String accountType, String name,
+                                                          String profilePictureURL) {
+        mCredentials.put(key(id, accountType),
+                new String[]{id, password, name, accountType, profilePictureURL});
+        return this;
+    }
+
+    /**
+     * @return the number of credentials stored.
+     */
+    public synchronized int getCredentialCount() {
+        return mCredentials.size();
+    }
+
+    /**
+     * Removes all the credentials.
+     */
+    public synchronized void clearCredentials() {
+        mCredentials.clear();
+    }
+
+    /**
+     * Sets the latency of every request.
+     *
+     * @param distribution - LATENCY_FIXED: always a milliseconds.  LATENCY_UNIFORM: between a and
+     *                     b milliseconds.  LATENCY_LOG_NORMAL: a median of a milliseconds and a
+     *                     99th percentile of b milliseconds, for a long tail.
+     * @param a            - see distribution.
+     * @param b            - see distribution, ignored for LATENCY_FIXED.
+     * @return this emulator.
+     */
+    public synchronized CredentialsEmulator setLatency(int distribution, long a, long b) {
+        if (distribution < LATENCY_FIXED || distribution > LATENCY_LOG_NORMAL) {
+            throw new IllegalArgumentException("Unknown latency distribution: " + distribution);
+        }
+        mLatencyDistribution = distribution;
+        mLatencyA = Math.max(0, a);
+        mLatencyB = Math.max(mLatencyA, b);
+        return this;
+    }
+
+    /**
+     * Sets what the emulated user does when a request needs a resolution, and how long it takes
+     * them.  Loads without a parent activity (prefetches) always report RESOLUTION_REQUIRED.
+     *
+     * @param outcome          - RESOLUTION_ACCEPT, RESOLUTION_CANCEL or RESOLUTION_REPORT.
+     * @param resolutionMillis - the time the user takes, after the request latency.
+     * @return this emulator.
+     */
+    public synchronized CredentialsEmulator setResolution(int outcome, long resolutionMillis) {
+        if (outcome < RESOLUTION_ACCEPT || outcome > RESOLUTION_REPORT) {
+            throw new IllegalArgumentException("Unknown resolution outcome: " + outcome);
+        }
+        mResolutionOutcome = outcome;
+        mResolutionMillis = Math.max(0, resolutionMillis);
+        return this;
+    }
+
+    /**
+     * Sets whether saves need the user to confirm them, like the first save of an app.
+     *
+     * @return this emulator.
+     */
+    public synchronized CredentialsEmulator setConfirmSaves(boolean confirmSaves) {
+        mConfirmSaves = confirmSaves;
+        return this;
+    }
+
+    /**
+     * Makes a fraction of the requests of a kind fail with a status code.
+     *
+     * @param request     - REQUEST_LOAD, REQUEST_SAVE or REQUEST_DELETE.
+     * @param statusCode  - the status code, such as NETWORK_ERROR (7) or RESOLUTION_REQUIRED (6).
+     * @param probability - the fraction of the requests that fail, 0 to stop injecting.
+     * @return this emulator.
+     */
+    public synchronized CredentialsEmulator injectStatus(int request, int statusCode,
+                                                         double probability) {
+        mInjectedCodes[request] = statusCode;
+        mInjectedProbabilities[request] = Math.max(0, Math.min(1, probability));
+        return this;
+    }
+
+    /**
+     * Makes every request fail as if connecting failed with the ConnectionResult error code,
+     * such as SERVICE_UPDATING (18), until called with 0.  Like the client, the requests fail
+     * with API_NOT_CONNECTED and the error code is only traced.
+     *
+     * @return this emulator.
+     */
+    public synchronized CredentialsEmulator setConnectionFailure(int errorCode) {
+        mConnectionErrorCode = errorCode;
+        return this;
+    }
+
+    /**
+     * Seeds the random latencies and injected failures, so a scenario can be replayed.  Each
+     * request draws from a generator derived from the seed, its operation id and its retry.
+     *
+     * @return this emulator.
+     */
+    public synchronized CredentialsEmulator setSeed(long seed) {
+        mSeed = seed;
+        return this;
+    }
+
+    @Override
+    public void load(long operationId, String... accountTypes) {
+        request(operationId, REQUEST_LOAD, true, accountTypes, null);
+    }
+
+    @Override
+    public void prefetch(long operationId, String... accountTypes) {
+        request(operationId, REQUEST_LOAD, false, accountTypes, null);
+    }
+
+    @Override
+    public void save(long operationId, String id, String password, String accountType,
+                     String name, String profilePictureURL) {
+        request(operationId, REQUEST_SAVE, true, null,
+                new String[]{id, password, name, accountType, profilePictureURL});
+    }
+
+    @Override
+    public void delete(long operationId, String id, String password, String accountType) {
+        request(operationId, REQUEST_DELETE, true, null,
+                new String[]{id, password, null, accountType, null});
+    }
+
+    /**
+     * Issues a request after the latency, like the client manager once connected.
+     *
+     * @param canResolve  - false if no resolution can be shown.
+     * @param credential  - the credential to save or delete, in store order.
+     */
+    private void request(final long operationId, final int request, final boolean canResolve,
+                         final String[] accountTypes, final String[] credential) {
+        if (!mDispatcher.isWaitingForResult(operationId)) {
+            TraceBuffer.record(operationId, TraceBuffer.EVENT_SKIPPED);
+            // Nobody gets this result, it only ends the operation.
+            mDispatcher.deliverResult(operationId, StatusCodes.CANCELED,
+                    null, null, null, null, null);
+            return;
+        }
+        if (!mDispatcher.beginRequest(operationId)) {
+            return;
+        }
+        TraceBuffer.record(operationId, TraceBuffer.EVENT_REQUEST);
+        final Random random = newRandom(operationId);
+        after(nextLatencyMillis(random), new Runnable() {
+            @Override
+            public void run() {
+                respond(operationId, request, canResolve, accountTypes, credential, random);
+            }
+        });
+    }
+
+    private void respond(final long operationId, int request, boolean canResolve,
+                         String[] accountTypes, final String[] credential, Random random) {
+        int connectionErrorCode;
+        int injected;
+        final ArrayList<String[]> matches = new ArrayList<>();
+        boolean needsResolution;
+        int outcome;
+        long resolutionMillis;
+        synchronized (this) {
+            connectionErrorCode = mConnectionErrorCode;
+            injected = connectionErrorCode != StatusCodes.SUCCESS
+                    ? StatusCodes.API_NOT_CONNECTED : StatusCodes.SUCCESS;
+            if (injected == StatusCodes.SUCCESS && mInjectedProbabilities[request] > 0
+                    && random.nextDouble() < mInjectedProbabilities[request]) {
+                injected = mInjectedCodes[request];
+            }
+            if (request == REQUEST_LOAD) {
+                for (String[] stored : mCredentials.values()) {
+                    if (matches(stored[3], accountTypes)) {
+                        matches.add(stored);
+                    }
+                }
+            }
+            needsResolution = injected == StatusCodes.RESOLUTION_REQUIRED
+                    || (injected == StatusCodes.SUCCESS
+                    && (request == REQUEST_LOAD ? matches.size() > 1
+                    : request == REQUEST_SAVE && mConfirmSaves));
+            outcome = canResolve ? mResolutionOutcome : RESOLUTION_REPORT;
+            resolutionMillis = mResolutionMillis;
+            if (!needsResolution && injected == StatusCodes.SUCCESS) {
+                apply(request, credential);
+            }
+        }
+        if (connectionErrorCode != StatusCodes.SUCCESS) {
+            TraceBuffer.record(0, TraceBuffer.EVENT_CONNECTION_FAILED, connectionErrorCode);
+        }
+        TraceBuffer.record(operationId, TraceBuffer.EVENT_API_RESULT,
+                needsResolution ? StatusCodes.RESOLUTION_REQUIRED : injected);
+        if (needsResolution) {
+            resolve(operationId, request, outcome, resolutionMillis, matches, credential);
+        } else if (injected != StatusCodes.SUCCESS) {
+            mDispatcher.deliverResult(operationId, injected, null, null, null, null, null);
+        } else if (request != REQUEST_LOAD) {
+            OperationMetrics.countCompletion(OperationMetrics.COMPLETION_SILENT_SUCCESS);
+            mDispatcher.deliverResult(operationId, StatusCodes.SUCCESS,
+                    null, null, null, null, null);
+        } else if (matches.isEmpty()) {
+            mDispatcher.deliverResult(operationId, SIGN_IN_REQUIRED,
+                    null, null, null, null, null);
+        } else {
+            if (canResolve) {
+                // Prefetches are not counted, nobody asked for them.
+                OperationMetrics.countCompletion(OperationMetrics.COMPLETION_SILENT_SUCCESS);
+            }
+            deliverCredential(operationId, matches.get(0));
+        }
+    }
+
+    /**
+     * Emulates the user handling a resolution, like the resolution activity.
+     */
+    private void resolve(final long operationId, final int request, int outcome,
+                         long resolutionMillis, final ArrayList<String[]> matches,
+                         final String[] credential) {
+        if (outcome == RESOLUTION_REPORT) {
+            mDispatcher.deliverResult(operationId, StatusCodes.RESOLUTION_REQUIRED,
+                    null, null, null, null, null);
+            return;
+        }
+        OperationMetrics.countCompletion(OperationMetrics.COMPLETION_RESOLUTION_REQUIRED);
+        mDispatcher.awaitingResolution(operationId);
+        if (outcome == RESOLUTION_CANCEL) {
+            after(resolutionMillis, new Runnable() {
+                @Override
+                public void run() {
+                    OperationMetrics.countCompletion(
+                            OperationMetrics.COMPLETION_RESOLUTION_CANCELED);
+                    mDispatcher.deliverResult(operationId, StatusCodes.CANCELED,
+                            null, null, null, null, null);
+                }
+            });
+            return;
+        }
+        after(resolutionMillis, new Runnable() {
+            @Override
+            public void run() {
+                if (request != REQUEST_LOAD) {
+                    synchronized (CredentialsEmulator.this) {
+                        apply(request, credential);
+                    }
+                    mDispatcher.deliverResult(operationId, StatusCodes.SUCCESS,
+                            null, null, null, null, null);
+                } else if (matches.isEmpty()) {
+                    // An injected resolution for a load with nothing to pick.
+                    mDispatcher.deliverResult(operationId, StatusCodes.CANCELED,
+                            null, null, null, null, null);
+                } else {
+                    deliverCredential(operationId, matches.get(0));
+                }
+            }
+        });
+    }
+
+    // Stores or removes the credential of a save or delete.  Guarded by this.
+    private void apply(int request, String[] credential) {
+        if (request == REQUEST_SAVE) {
+            mCredentials.put(key(credential[0], credential[3]), credential);
+        } else if (request == REQUEST_DELETE) {
+            mCredentials.remove(key(credential[0], credential[3]));
+        }
+    }
+
+    private void deliverCredential(long operationId, String[] credential) {
+        mDispatcher.deliverResult(operationId, StatusCodes.SUCCESS, credential[0],
+                credential[1], credential[2], credential[3], credential[4]);
+    }
+
+    private void after(long delayMillis, Runnable task) {
+        if (delayMillis <= 0) {
+            task.run();
+        } else {
+            mTimer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized Random newRandom(long operationId) {
+        return new Random(mix(mix(mSeed ^ operationId) + mDispatcher.retriesOf(operationId)));
+    }
+
+    // The SplitMix64 finalizer.  Random scrambles its seed too little for nearby seeds, such as
+    // consecutive operation ids, to give unrelated first values.
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private synchronized long nextLatencyMillis(Random random) {
+        switch (mLatencyDistribution) {
+            case LATENCY_UNIFORM:
+                return mLatencyA + (long) (random.nextDouble() * (mLatencyB - mLatencyA));
+            case LATENCY_LOG_NORMAL:
+                if (mLatencyA <= 0) {
+                    return 0;
+                }
+                double sigma = Math.log((double) mLatencyB / mLatencyA) / Z_99;
+                return (long) (mLatencyA * Math.exp(sigma * random.nextGaussian()));
+            default:
+                return mLatencyA;
+        }
+    }
+
+    private static String key(String id, String accountType) {
+        return (accountType != null ? accountType : "") + '\n' + id;
+    }
+
+    // A password credential (no account type) matches every load, since the loads support
+    // password login.
+    private static boolean matches(String accountType, String[] accountTypes) {
+        if (accountType == null || accountType.isEmpty()
+                || accountTypes == null || accountTypes.length == 0) {
+            return true;
+        }
+        for (String candidate : accountTypes) {
+            if (accountType.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the load operations in flight so concurrent loads for the same account types share a
+ * single Credentials API request.  The first load for a set of account types becomes the leader
+ * and is executed; loads started while it is in flight attach to it as followers and are
+ * completed with the leader's result.
+ * <p/>
+ * All the methods are synchronized, so loads can be started from any thread and completed from
+ * the main thread.
+ */
+class LoadCoalescer {
+
+    private static final long[] NO_FOLLOWERS = new long[0];
+
+    private final long mMaxAgeNanos;
+
+    // normalized account types -> the group in flight for them.
+    private final HashMap<String, Group> mGroupsByKey = new HashMap<>();
+
+    // leader operation id -> the group it leads.
+    private final HashMap<Long, Group> mGroupsByLeader = new HashMap<>();
+
+    /**
+     * @param maxAgeMillis - how long a leader can be attached to.  A leader that never completes
+     *                     is replaced after this, so followers are not stuck behind it.
+     */
+    LoadCoalescer(long maxAgeMillis) {
+        mMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    /**
+     * Returns the key identifying the set of account types, independent of order and duplicates.
+     *
+     * @param accountTypes - the account types of the load, may be null.
+     */
+    static String normalize(String... accountTypes) {
+        if (accountTypes == null || accountTypes.length == 0) {
+            return "";
+        }
+        if (accountTypes.length == 1) {
+            return accountTypes[0] != null ? accountTypes[0] : "";
+        }
+        TreeSet<String> sorted = new TreeSet<>();
+        for (String accountType : accountTypes) {
+            if (accountType != null) {
+                sorted.add(accountType);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String accountType : sorted) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(accountType);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Attaches a new load to the load in flight for the same account types, or makes it the
+     * leader if there is none.
+     *
+     * @param key        - the normalized account types.
+     * @param id         - the operation id of the new load.
+     * @param generation - the credential cache generation when the load started.
+     * @return the id of the leader the load was attached to, or 0 if the new load is the leader
+     * and needs to be executed.
+     */
+    synchronized long attach(String key, long id, long generation) {
+        long now = System.nanoTime();
+        Group group = mGroupsByKey.get(key);
+        if (group != null && now - group.mStartedNanos < mMaxAgeNanos) {
+            group.add(id);
+            return group.mLeaderId;
+        }
+        if (group != null) {
+            mGroupsByLeader.remove(group.mLeaderId);
+        }
+        group = new Group(key, id, generation, now);
+        mGroupsByKey.put(key, group);
+        mGroupsByLeader.put(id, group);
+        return 0;
+    }
+
+    /**
+     * Ends the group led by the given operation, if any.
+     *
+     * @param id - the id of an operation that completed.
+     * @return the group, whose followers need the same result, or null if the operation
+     * was not leading a load.
+     */
+    synchronized Group finish(long id) {
+        Group group = mGroupsByLeader.remove(id);
+        if (group != null && mGroupsByKey.get(group.mKey) == group) {
+            mGroupsByKey.remove(group.mKey);
+        }
+        return group;
+    }
+
+    /**
+     * Returns true if a load attached to the given operation is still waiting for its result.
+     * This is polled often, so it checks the followers in place instead of copying them.
+     *
+     * @param id       - the id of an operation.
+     * @param registry - the registry of the operations still waiting.
+     * @return false if none is waiting, or the operation is not leading a load.
+     */
+    synchronized boolean hasWaitingFollower(long id, ResponseHandlerRegistry registry) {
+        Group group = mGroupsByLeader.get(id);
+        if (group == null) {
+            return false;
+        }
+        for (int i = 0; i < group.mFollowerCount; i++) {
+            if (registry.contains(group.mFollowers[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A leading load and the loads attached to it.  Only modified while the coalescer is locked.
+     */
+    static final class Group {
+        final String mKey;
+        final long mLeaderId;
+        final long mGeneration;
+        final long mStartedNanos;
+        private long[] mFollowers = NO_FOLLOWERS;
+        private int mFollowerCount;
+
+        Group(String key, long leaderId, long generation, long startedNanos) {
+            mKey = key;
+            mLeaderId = leaderId;
+            mGeneration = generation;
+            mStartedNanos = startedNanos;
+        }
+
+        /**
+         * @return the ids of the loads attached to the leader.  Only call after finish() or
+         * with the coalescer locked.
+         */
+        long[] followers() {
+            return Arrays.copyOf(mFollowers, mFollowerCount);
+        }
+
+        void add(long id) {
+            if (mFollowerCount == mFollowers.length) {
+                mFollowers = Arrays.copyOf(mFollowers, Math.max(4, mFollowerCount * 2));
+            }
+            mFollowers[mFollowerCount++] = id;
+        }
+    }
+}
@@ -0,0 +1,965 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches the credential operations to a CredentialsBackend and delivers their results to
+ * the response handlers.  This holds everything between the public entry points and the
+ * Credentials API that does not need Android: the handler registry, the coalescing of loads and
+ * the credential cache.
+ * <p/>
+ * The operations can be started from any thread.  The backend reports the result of each one
+ * by calling deliverResult(), also from any thread.  A transient failure is not reported to the
+ * handler while the operation has retries left: the backend call is made again after a backoff,
+ * unless the circuit breaker is open.
+ * <p/>
+ * Each backend call goes through a state machine: not started, in flight, awaiting resolution,
+ * completed.  The backend calls beginRequest() right before issuing the request, so a call that
+ * is replayed (such as after a reconnect) is only issued once, and never after the operation
+ * completed.
+ * <p/>
+ * The response handlers are called by the callback executor.  By default they run inline, on
+ * the thread that completes the operation.
+ */
+class OperationDispatcher {
+
+    private static final String TAG = "SmartLockDispatcher";
+
+    // The operation code of prefetches in the registry.  Prefetches are not traced or counted
+    // in the metrics, since nobody asked for them.
+    static final int OP_PREFETCH = 5;
+
+    // How long a prefetch has to complete.  Loads waiting for a prefetch that takes longer are
+    // started on their own.
+    private static final long PREFETCH_TIMEOUT_MS = 10 * 1000;
+
+    // The maxRetries that means the number of retries of the default retry policy.
+    static final int DEFAULT_RETRIES = -1;
+
+    // The states of the backend call of an operation.
+    static final int STATE_NOT_STARTED = 0;
+    static final int STATE_IN_FLIGHT = 1;
+    static final int STATE_AWAITING_RESOLUTION = 2;
+    static final int STATE_COMPLETED = 3;
+
+    // After this many transient failures in a row, new requests fail fast for the open period.
+    private static final int DEFAULT_BREAKER_THRESHOLD = 5;
+    private static final long DEFAULT_BREAKER_OPEN_MS = 30 * 1000;
+
+    // Calls the response handlers on the thread that completes the operation.
+    static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Listener notified when an operation is completed before its backend reported a result,
+     * because it timed out or was canceled.
+     */
+    interface Listener {
+        void onAbandoned(long operationId);
+    }
+
+    private final ResponseHandlerRegistry mResponseHandlers;
+
+    // loads in flight, so concurrent loads for the same account types share one request.
+    private final LoadCoalescer mInFlightLoads;
+
+    // opt-in cache of loaded credentials.
+    private final CredentialCache mCredentialCache = new CredentialCache();
+
+    // prefetched results, and the loads waiting for a prefetch.
+    private final PrefetchStore mPrefetches = new PrefetchStore();
+
+    // opt-in digests of the recent successful saves, and the saves in flight while enabled.
+    private final SaveDeduplicator mSaveDeduplicator = new SaveDeduplicator();
+    private final ConcurrentHashMap<Long, SaveDeduplicator.Save> mSaves =
+            new ConcurrentHashMap<>();
+
+    private final Listener mListener;
+
+    private volatile RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+    private final CircuitBreaker mCircuitBreaker =
+            new CircuitBreaker(DEFAULT_BREAKER_THRESHOLD, DEFAULT_BREAKER_OPEN_MS);
+
+    private volatile Executor mCallbackExecutor = INLINE;
+
+    // operation id -> the backend call of the operation, until the call returns, or until the
+    // operation completes if the call was not issued.
+    private final ConcurrentHashMap<Long, Attempt> mAttempts = new ConcurrentHashMap<>();
+
+    // caps on the backend calls in flight.
+    private final AdmissionController mAdmission = new AdmissionController();
+
+    /**
+     * @param defaultTimeoutMillis - the deadline of operations started without one.
+     * @param listener             - notified of abandoned operations, may be null.
+     */
+    OperationDispatcher(long defaultTimeoutMillis, Listener listener) {
+        mListener = listener;
+        mResponseHandlers = new ResponseHandlerRegistry(defaultTimeoutMillis,
+                new ResponseHandlerRegistry.OnExpiredListener() {
+                    @Override
+                    public void onExpired(long id) {
+                        abandoned(id);
+                    }
+                });
+        mInFlightLoads = new LoadCoalescer(defaultTimeoutMillis);
+    }
+
+    /**
+     * Loads the credential for the account types, calling the handler when complete.
+     *
+     * @return the operation id, or 0 if the handler was already called.
+     * @see #loadAsync
+     */
+    long load(CredentialsBackend backend, SmartLockSupportResponseHandler responseHandler,
+              long timeoutMillis, int maxRetries, String... accountTypes) {
+        // The handler is added before the load starts, so it is called before the trace ends.
+        return loadAsync(new SmartLockSupportOperation(this).addListener(responseHandler),
+                backend, timeoutMillis, maxRetries, accountTypes).getOperationId();
+    }
+
+    /**
+     * Loads the credential for the account types.  If the credential cache holds one, the
+     * operation completes before returning with SUCCESS_CACHE, and if a prefetch holds one, with
+     * SUCCESS.  If a prefetch or a load for the same account types is already in flight, this one
+     * waits for it and gets the same result.
+     *
+     * @param backend       - the backend to load from.
+     * @param timeoutMillis - the time the load has to complete, 0 for the default.
+     * @param maxRetries    - the number of retries after a transient failure, or
+     *                      DEFAULT_RETRIES.
+     * @param accountTypes  - the array of account types to limit the credential returned.
+     * @return the handle of the operation.
+     */
+    SmartLockSupportOperation loadAsync(CredentialsBackend backend, long timeoutMillis,
+                                        int maxRetries, String... accountTypes) {
+        return loadAsync(new SmartLockSupportOperation(this), backend, timeoutMillis, maxRetries,
+                accountTypes);
+    }
+
+    private SmartLockSupportOperation loadAsync(SmartLockSupportOperation operation,
+                                                CredentialsBackend backend, long timeoutMillis,
+                                                int maxRetries, String... accountTypes) {
+        long startNanos = System.nanoTime();
+        long entryNanos = OperationTracer.now();
+        long responseHandlerKey = 0;
+        try {
+            String accountTypesKey = LoadCoalescer.normalize(accountTypes);
+            CredentialCache.Entry cached = mCredentialCache.get(accountTypesKey);
+            if (cached != null) {
+                TraceBuffer.record(0, TraceBuffer.EVENT_CACHE_HIT);
+                OperationMetrics.record(SmartLockSupportTraceListener.OP_READ,
+                        StatusCodes.SUCCESS_CACHE, System.nanoTime() - startNanos);
+                complete(operation, StatusCodes.SUCCESS_CACHE, cached);
+                return operation;
+            }
+            CredentialCache.Entry prefetched = mPrefetches.take(accountTypesKey);
+            if (prefetched != null) {
+                TraceBuffer.record(0, TraceBuffer.EVENT_PREFETCH_HIT);
+                // The prefetch itself is not counted, so the load it answers is.
+                OperationMetrics.countCompletion(OperationMetrics.COMPLETION_SILENT_SUCCESS);
+                OperationMetrics.record(SmartLockSupportTraceListener.OP_READ,
+                        StatusCodes.SUCCESS, System.nanoTime() - startNanos);
+                complete(operation, StatusCodes.SUCCESS, prefetched);
+                return operation;
+            }
+            responseHandlerKey = mResponseHandlers.register(operation.mCompleter,
+                    SmartLockSupportTraceListener.OP_READ, timeoutMillis);
+            operation.setOperationId(responseHandlerKey);
+            OperationTracer.begin(responseHandlerKey, SmartLockSupportTraceListener.OP_READ,
+                    entryNanos);
+            TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_LOAD);
+            if (mPrefetches.park(accountTypesKey,
+                    new PrefetchStore.Waiter(responseHandlerKey, backend, maxRetries,
+                            accountTypes))) {
+                TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_WAITING_FOR_PREFETCH);
+                return operation;
+            }
+            startLoad(backend, responseHandlerKey, accountTypesKey, maxRetries, accountTypes);
+            return operation;
+        } catch (Throwable t) {
+            TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_START_FAILED);
+            if (SupportLog.isLoggable(SupportLog.ERROR)) {
+                SupportLog.e(TAG, "Got a throwable, cannot start load " + t.getMessage());
+            }
+            // if there was a problem starting, just fail, along with any loads attached to it.
+            if (responseHandlerKey != 0) {
+                deliverResult(responseHandlerKey, StatusCodes.ERROR, null, null, null, null, null);
+            }
+            operation.setOperationId(0);
+            operation.complete(StatusCodes.ERROR);
+            return operation;
+        }
+    }
+
+    /**
+     * Completes a load with a credential held by the library.  Its missing fields are passed as
+     * "", like in the results delivered by the registry.
+     */
+    private static void complete(SmartLockSupportOperation operation, int resultCode,
+                                 CredentialCache.Entry credential) {
+        operation.complete(resultCode, ResponseHandlerRegistry.orEmpty(credential.mId),
+                ResponseHandlerRegistry.orEmpty(credential.mPassword),
+                ResponseHandlerRegistry.orEmpty(credential.mName),
+                ResponseHandlerRegistry.orEmpty(credential.mAccountType),
+                ResponseHandlerRegistry.orEmpty(credential.mProfilePictureURL));
+    }
+
+    /**
+     * Starts the load, unless a load for the same account types is in flight, in which case it
+     * is attached to that one.
+     */
+    private void startLoad(final CredentialsBackend backend, long responseHandlerKey,
+                           String accountTypesKey, int maxRetries, final String... accountTypes) {
+        long leader = mInFlightLoads.attach(accountTypesKey, responseHandlerKey,
+                mCredentialCache.generation());
+        if (leader != 0) {
+            TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_ATTACHED, leader);
+            return;
+        }
+        start(new Attempt(responseHandlerKey, SmartLockSupportTraceListener.OP_READ,
+                retryPolicy(maxRetries)) {
+            @Override
+            void run() {
+                backend.load(mId, accountTypes);
+            }
+        });
+    }
+
+    /**
+     * Loads the credential for the account types ahead of the first load, if that needs no
+     * user interaction.  A successful result is held for the first load of the same account
+     * types, and a failed one, including a load that needs a resolution, is dropped so that load
+     * goes to the backend as usual.
+     *
+     * @param backend      - the backend to load from.
+     * @param holdMillis   - how long a successful result is held.
+     * @param accountTypes - the array of account types to limit the credential returned.
+     * @return true if the prefetch started, false if the credential is already cached, held or
+     * being prefetched, the circuit breaker is open, or the prefetch could not start.
+     */
+    boolean prefetch(CredentialsBackend backend, long holdMillis, String... accountTypes) {
+        long responseHandlerKey = 0;
+        try {
+            String accountTypesKey = LoadCoalescer.normalize(accountTypes);
+            if (mCredentialCache.get(accountTypesKey) != null || mCircuitBreaker.isOpen()) {
+                return false;
+            }
+            final PrefetchStore.Prefetch prefetch = mPrefetches.start(accountTypesKey,
+                    mCredentialCache.generation(), holdMillis);
+            if (prefetch == null) {
+                return false;
+            }
+            responseHandlerKey = mResponseHandlers.register(new SmartLockSupportResponseHandler() {
+                @Override
+                public void OnResult(int resultCode, String id, String password, String name,
+                                     String accountType, String profilePictureURL) {
+                    onPrefetchResult(prefetch, resultCode, id, password, name, accountType,
+                            profilePictureURL);
+                }
+            }, OP_PREFETCH, PREFETCH_TIMEOUT_MS);
+            TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_PREFETCH);
+            backend.prefetch(responseHandlerKey, accountTypes);
+            return true;
+        } catch (Throwable t) {
+            TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_START_FAILED);
+            if (SupportLog.isLoggable(SupportLog.ERROR)) {
+                SupportLog.e(TAG, "Got a throwable, cannot start prefetch " + t.getMessage());
+            }
+            if (responseHandlerKey != 0) {
+                deliverResult(responseHandlerKey, StatusCodes.ERROR, null, null, null, null, null);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Holds the result of a prefetch, or hands it to the loads waiting for it.  If the prefetch
+     * failed, the waiting loads are started on their own.
+     */
+    private void onPrefetchResult(PrefetchStore.Prefetch prefetch, int resultCode, String id,
+                                  String password, String name, String accountType,
+                                  String profilePictureURL) {
+        boolean success = resultCode == StatusCodes.SUCCESS;
+        List<PrefetchStore.Waiter> waiters = mPrefetches.finish(prefetch, resultCode, id,
+                password, name, accountType, profilePictureURL,
+                prefetch.mGeneration != mCredentialCache.generation());
+        if (success) {
+            mCredentialCache.put(prefetch.mKey, prefetch.mGeneration, id, password, name,
+                    accountType, profilePictureURL);
+        }
+        for (PrefetchStore.Waiter waiter : waiters) {
+            if (success) {
+                mResponseHandlers.complete(waiter.mId, resultCode, id, password, name,
+                        accountType, profilePictureURL);
+                continue;
+            }
+            if (!mResponseHandlers.contains(waiter.mId)) {
+                continue;
+            }
+            try {
+                startLoad(waiter.mBackend, waiter.mId, prefetch.mKey, waiter.mMaxRetries,
+                        waiter.mAccountTypes);
+            } catch (Throwable t) {
+                TraceBuffer.record(waiter.mId, TraceBuffer.EVENT_START_FAILED);
+                deliverResult(waiter.mId, StatusCodes.ERROR, null, null, null, null, null);
+            }
+        }
+    }
+
+    /**
+     * Saves a credential, calling the handler when complete.
+     *
+     * @return the operation id, or 0 if the handler was already called.
+     * @see #saveAsync
+     */
+    long save(CredentialsBackend backend, SmartLockSupportResponseHandler responseHandler,
+              long timeoutMillis, int maxRetries, String id, String password, String accountType,
+              String name, String profilePictureURL) {
+        return saveAsync(new SmartLockSupportOperation(this).addListener(responseHandler),
+                backend, timeoutMillis, maxRetries, id, password, accountType, name,
+                profilePictureURL).getOperationId();
+    }
+
+    /**
+     * Saves a credential.  The cached credentials it could replace are invalidated.  If save
+     * deduplication is enabled and the identical credential was saved successfully recently,
+     * the operation completes with SUCCESS before returning, without calling the backend.
+     *
+     * @param backend           - the backend to save to.
+     * @param timeoutMillis     - the time the save has to complete, 0 for the default.
+     * @param maxRetries        - the number of retries after a transient failure, or
+     *                          DEFAULT_RETRIES.
+     * @param id                - the credential id
+     * @param password          - the credential password.
+     * @param accountType       - the account type
+     * @param name              - the credential display name.
+     * @param profilePictureURL - the profile picture.
+     * @return the handle of the operation.
+     */
+    SmartLockSupportOperation saveAsync(CredentialsBackend backend, long timeoutMillis,
+                                        int maxRetries, String id, String password,
+                                        String accountType, String name,
+                                        String profilePictureURL) {
+        return saveAsync(new SmartLockSupportOperation(this), backend, timeoutMillis, maxRetries,
+                id, password, accountType, name, profilePictureURL);
+    }
+
+    private SmartLockSupportOperation saveAsync(SmartLockSupportOperation operation,
+                                                final CredentialsBackend backend,
+                                                long timeoutMillis, int maxRetries,
+                                                final String id, final String password,
+                                                final String accountType, final String name,
+                                                final String profilePictureURL) {
+        long startNanos = System.nanoTime();
+        long entryNanos = OperationTracer.now();
+        long responseHandlerKey = 0;
+        try {
+            SaveDeduplicator.Save save = null;
+            if (mSaveDeduplicator.isEnabled()) {
+                save = mSaveDeduplicator.check(id, password, accountType, name,
+                        profilePictureURL);
+                if (save == null) {
+                    TraceBuffer.record(0, TraceBuffer.EVENT_SAVE_SKIPPED);
+                    OperationMetrics.countCompletion(OperationMetrics.COMPLETION_SAVE_SKIPPED);
+                    OperationMetrics.record(SmartLockSupportTraceListener.OP_SAVE,
+                            StatusCodes.SUCCESS, System.nanoTime() - startNanos);
+                    operation.complete(StatusCodes.SUCCESS);
+                    return operation;
+                }
+            }
+            mCredentialCache.invalidate(id, accountType);
+            mPrefetches.invalidate();
+            responseHandlerKey = mResponseHandlers.register(operation.mCompleter,
+                    SmartLockSupportTraceListener.OP_SAVE, timeoutMillis);
+            operation.setOperationId(responseHandlerKey);
+            if (save != null) {
+                mSaves.put(responseHandlerKey, save);
+            }
+            OperationTracer.begin(responseHandlerKey, SmartLockSupportTraceListener.OP_SAVE,
+                    entryNanos);
+            TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_SAVE);
+            start(new Attempt(responseHandlerKey, SmartLockSupportTraceListener.OP_SAVE,
+                    retryPolicy(maxRetries), id, accountType) {
+                @Override
+                void run() {
+                    backend.save(mId, id, password, accountType, name, profilePictureURL);
+                }
+            });
+            return operation;
+        } catch (Throwable t) {
+            TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_START_FAILED);
+            if (SupportLog.isLoggable(SupportLog.ERROR)) {
+                SupportLog.e(TAG, "Got a throwable, cannot start save " + t.getMessage());
+            }
+            // if there was a problem starting, just fail.
+            mResponseHandlers.remove(responseHandlerKey);
+            startAdmitted(forget(responseHandlerKey));
+            mSaves.remove(responseHandlerKey);
+            // Completed under its id, so its trace ends, then reported as never started.
+            operation.complete(StatusCodes.ERROR);
+            operation.setOperationId(0);
+            return operation;
+        }
+    }
+
+    /**
+     * Deletes a credential, calling the handler when complete.
+     *
+     * @return the operation id, or 0 if the handler was already called.
+     * @see #deleteAsync
+     */
+    long delete(CredentialsBackend backend, SmartLockSupportResponseHandler responseHandler,
+                long timeoutMillis, int maxRetries, String id, String password,
+                String accountType) {
+        return deleteAsync(new SmartLockSupportOperation(this).addListener(responseHandler),
+                backend, timeoutMillis, maxRetries, id, password, accountType).getOperationId();
+    }
+
+    /**
+     * Deletes a credential.  The cached credentials it could affect are invalidated, and a
+     * recent save of the id no longer skips an identical save.
+     *
+     * @param backend         - the backend to delete from.
+     * @param timeoutMillis   - the time the delete has to complete, 0 for the default.
+     * @param maxRetries      - the number of retries after a transient failure, or
+     *                        DEFAULT_RETRIES.
+     * @param id              - the credential id
+     * @param password        - the credential password.
+     * @param accountType     - the account type
+     * @return the handle of the operation.
+     */
+    SmartLockSupportOperation deleteAsync(CredentialsBackend backend, long timeoutMillis,
+                                          int maxRetries, String id, String password,
+                                          String accountType) {
+        return deleteAsync(new SmartLockSupportOperation(this), backend, timeoutMillis,
+                maxRetries, id, password, accountType);
+    }
+
+    private SmartLockSupportOperation deleteAsync(SmartLockSupportOperation operation,
+                                                  final CredentialsBackend backend,
+                                                  long timeoutMillis, int maxRetries,
+                                                  final String id, final String password,
+                                                  final String accountType) {
+        long entryNanos = OperationTracer.now();
+        long responseHandlerKey = 0;
+        try {
+            mCredentialCache.invalidate(id, accountType);
+            mSaveDeduplicator.invalidate(id);
+            mPrefetches.invalidate();
+            responseHandlerKey = mResponseHandlers.register(operation.mCompleter,
+                    SmartLockSupportTraceListener.OP_DELETE, timeoutMillis);
+            operation.setOperationId(responseHandlerKey);
+            OperationTracer.begin(responseHandlerKey, SmartLockSupportTraceListener.OP_DELETE,
+                    entryNanos);
+            TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_DELETE);
+            start(new Attempt(responseHandlerKey, SmartLockSupportTraceListener.OP_DELETE,
+                    retryPolicy(maxRetries), id, accountType) {
+                @Override
+                void run() {
+                    backend.delete(mId, id, password, accountType);
+                }
+            });
+            return operation;
+        } catch (Throwable t) {
+            TraceBuffer.record(responseHandlerKey, TraceBuffer.EVENT_START_FAILED);
+            if (SupportLog.isLoggable(SupportLog.ERROR)) {
+                SupportLog.e(TAG, "Got a throwable, cannot start delete " + t.getMessage());
+            }
+            // if there was a problem starting, just fail.
+            mResponseHandlers.remove(responseHandlerKey);
+            startAdmitted(forget(responseHandlerKey));
+            // Completed under its id, so its trace ends, then reported as never started.
+            operation.complete(StatusCodes.ERROR);
+            operation.setOperationId(0);
+            return operation;
+        }
+    }
+
+    /**
+     * Saves a batch of credentials passed as parallel arrays, a missing or short array is
+     * treated as nulls.  The handler is called once with the result code of each credential.
+     */
+    void saveBatch(CredentialsBackend backend,
+                   SmartLockSupportBatchResponseHandler responseHandler,
+                   String[] ids, String[] passwords, String[] accountTypes, String[] names,
+                   String[] profilePictureURLs) {
+        int count = ids != null ? ids.length : 0;
+        BatchResult batch = new BatchResult(responseHandler, count);
+        for (int i = 0; i < count; i++) {
+            save(backend, batch.item(i), 0, DEFAULT_RETRIES, ids[i], itemAt(passwords, i),
+                    itemAt(accountTypes, i), itemAt(names, i), itemAt(profilePictureURLs, i));
+        }
+        batch.completeIfEmpty();
+    }
+
+    /**
+     * Deletes a batch of credentials passed as parallel arrays, a missing or short array is
+     * treated as nulls.  The handler is called once with the result code of each credential.
+     */
+    void deleteBatch(CredentialsBackend backend,
+                     SmartLockSupportBatchResponseHandler responseHandler,
+                     String[] ids, String[] passwords, String[] accountTypes) {
+        int count = ids != null ? ids.length : 0;
+        BatchResult batch = new BatchResult(responseHandler, count);
+        for (int i = 0; i < count; i++) {
+            delete(backend, batch.item(i), 0, DEFAULT_RETRIES, ids[i], itemAt(passwords, i),
+                    itemAt(accountTypes, i));
+        }
+        batch.completeIfEmpty();
+    }
+
+    private static String itemAt(String[] values, int index) {
+        return values != null && index < values.length ? values[index] : null;
+    }
+
+    /**
+     * Cancels an operation.  Its handler is called with CANCELED right away, unless the operation
+     * already completed.
+     *
+     * @param operationId - the id returned when the operation was started.
+     * @return true if the operation was canceled, false if it had already completed.
+     */
+    boolean cancel(long operationId) {
+        if (!mResponseHandlers.complete(operationId, StatusCodes.CANCELED,
+                null, null, null, null, null)) {
+            return false;
+        }
+        abandoned(operationId);
+        return true;
+    }
+
+    /**
+     * Returns true if somebody is still waiting for the result of the operation: its own
+     * handler, or the handler of a load attached to it.
+     */
+    boolean isWaitingForResult(long operationId) {
+        return mResponseHandlers.contains(operationId)
+                || mInFlightLoads.hasWaitingFollower(operationId, mResponseHandlers);
+    }
+
+    /**
+     * Invokes the result handler and removes it from the registry.  If the operation is a load,
+     * a successful result is stored in the credential cache and the loads attached to it are
+     * invoked with the same result.
+     *
+     * @param operationId       - the id of the operation whose handler to invoke.
+     * @param resultCode        - the result code of the operation.
+     * @param id                - the credential id
+     * @param password          - the credential password.
+     * @param name              - the credential display name.
+     * @param accountType       - the account type
+     * @param profilePictureURL - the profile picture.
+     */
+    void deliverResult(long operationId, int resultCode, String id, String password,
+                       String name, String accountType, String profilePictureURL) {
+        Attempt attempt = mAttempts.get(operationId);
+        if (RetryPolicy.isTransient(resultCode)) {
+            mCircuitBreaker.onFailure(operationId);
+            if (retry(operationId, resultCode)) {
+                return;
+            }
+        } else if (resultCode == StatusCodes.SUCCESS || (attempt != null
+                && (attempt.mState.get() == STATE_IN_FLIGHT
+                || attempt.mState.get() == STATE_AWAITING_RESOLUTION))) {
+            // The backend answered, even if the request needs a resolution or was canceled.
+            mCircuitBreaker.onSuccess(operationId);
+        } else {
+            // Results of calls that were never issued say nothing about the backend.
+            mCircuitBreaker.onNoAnswer(operationId);
+        }
+        long admitted = forget(operationId);
+        if (attempt != null && attempt.mOp != SmartLockSupportTraceListener.OP_READ
+                && resultCode == StatusCodes.SUCCESS) {
+            // A load answered while the save or delete was in flight can have cached the
+            // credential as it was before, so invalidate again now that it changed.
+            mCredentialCache.invalidate(attempt.mCredentialId, attempt.mCredentialAccountType);
+            mPrefetches.invalidate();
+            if (attempt.mOp == SmartLockSupportTraceListener.OP_DELETE) {
+                mSaveDeduplicator.invalidate(attempt.mCredentialId);
+            }
+        }
+        SaveDeduplicator.Save save = mSaves.remove(operationId);
+        if (save != null && resultCode == StatusCodes.SUCCESS) {
+            mSaveDeduplicator.saved(save);
+        }
+        LoadCoalescer.Group load = mInFlightLoads.finish(operationId);
+        if (load != null && resultCode == StatusCodes.SUCCESS) {
+            mCredentialCache.put(load.mKey, load.mGeneration, id, password, name, accountType,
+                    profilePictureURL);
+        }
+        mResponseHandlers.complete(operationId, resultCode, id, password, name,
+                accountType, profilePictureURL);
+        if (load != null) {
+            for (long follower : load.followers()) {
+                mResponseHandlers.complete(follower, resultCode, id, password, name,
+                        accountType, profilePictureURL);
+            }
+        }
+        startAdmitted(admitted);
+    }
+
+    /**
+     * Moves the backend call of the operation from not started to in flight.  The backend calls
+     * this right before issuing the request, and skips the request if it returns false.
+     *
+     * @return true if the request is to be issued, false if the operation completed or its
+     * request was already issued.
+     */
+    boolean beginRequest(long operationId) {
+        if (!isWaitingForResult(operationId)) {
+            return false;
+        }
+        Attempt attempt = mAttempts.get(operationId);
+        // Prefetches have no attempt, and are issued only once.
+        if (attempt == null || attempt.mState.compareAndSet(STATE_NOT_STARTED, STATE_IN_FLIGHT)) {
+            return true;
+        }
+        TraceBuffer.record(operationId, TraceBuffer.EVENT_DUPLICATE_REQUEST);
+        return false;
+    }
+
+    /**
+     * @return the number of times the backend call of the operation was made again after a
+     * transient failure, 0 if it is unknown.
+     */
+    int retriesOf(long operationId) {
+        Attempt attempt = mAttempts.get(operationId);
+        return attempt != null ? attempt.mRetryPolicy.mMaxRetries - attempt.mRetriesLeft : 0;
+    }
+
+    /**
+     * Records that the request of the operation needs a resolution by the user.
+     */
+    void awaitingResolution(long operationId) {
+        Attempt attempt = mAttempts.get(operationId);
+        if (attempt != null) {
+            attempt.mState.compareAndSet(STATE_IN_FLIGHT, STATE_AWAITING_RESOLUTION);
+        }
+    }
+
+    /**
+     * @return the state of the backend call of the operation, STATE_COMPLETED once the call
+     * returned, once the operation completed without issuing it, or if it is unknown.
+     */
+    int stateOf(long operationId) {
+        Attempt attempt = mAttempts.get(operationId);
+        if (attempt != null) {
+            return attempt.mState.get();
+        }
+        return isWaitingForResult(operationId) ? STATE_IN_FLIGHT : STATE_COMPLETED;
+    }
+
+    /**
+     * @return the number of operations whose handler has not been called yet.
+     */
+    int pendingCount() {
+        return mResponseHandlers.size();
+    }
+
+    /**
+     * Enables the in-memory cache of loaded credentials.
+     *
+     * @param ttlMillis  - how long a loaded credential is served from the cache. 0 disables the cache.
+     * @param maxEntries - the maximum number of sets of account types cached.
+     */
+    void configureCredentialCache(long ttlMillis, int maxEntries) {
+        mCredentialCache.configure(ttlMillis, maxEntries);
+    }
+
+    /**
+     * Enables skipping saves of a credential identical to one saved successfully recently.
+     *
+     * @param ttlMillis  - how long a save skips identical saves after it. 0 disables it.
+     * @param maxEntries - the maximum number of credential ids remembered.
+     */
+    void configureSaveDeduplication(long ttlMillis, int maxEntries) {
+        mSaveDeduplicator.configure(ttlMillis, maxEntries);
+    }
+
+    /**
+     * Removes all the credentials from the cache, drops the prefetched ones and forgets the
+     * recent saves.
+     */
+    void clearCredentialCache() {
+        mCredentialCache.clear();
+        mSaveDeduplicator.clear();
+        mPrefetches.invalidate();
+    }
+
+    /**
+     * Sets the retry policy of the operations started without their own number of retries, and
+     * the backoff of all the retries.
+     *
+     * @param maxRetries      - the number of retries after a transient failure.
+     * @param baseDelayMillis - the backoff before the first retry, doubled for each retry after.
+     * @param maxDelayMillis  - the maximum backoff.
+     */
+    void setRetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+        mRetryPolicy = new RetryPolicy(maxRetries, baseDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * Configures the circuit breaker.
+     *
+     * @param failureThreshold - the number of transient failures in a row that opens the breaker,
+     *                         0 to never open it.
+     * @param openMillis       - how long requests fail fast once it is open.
+     */
+    void configureCircuitBreaker(int failureThreshold, long openMillis) {
+        mCircuitBreaker.configure(failureThreshold, openMillis);
+    }
+
+    /**
+     * Caps the operations whose backend call is in flight.
+     *
+     * @param maxInFlight      - the maximum number of operations in flight, 0 for no cap.
+     * @param maxInFlightPerOp - the maximum number of loads, saves or deletes in flight, 0 for
+     *                         no cap.
+     * @param maxQueued        - the maximum number of operations waiting for a slot, 0 for no
+     *                         cap.
+     * @param policy           - one of the AdmissionController POLICY_ constants.
+     */
+    void configureAdmission(int maxInFlight, int maxInFlightPerOp, int maxQueued, int policy) {
+        mAdmission.configure(maxInFlight, maxInFlightPerOp, maxQueued, policy);
+    }
+
+    /**
+     * @return the admission counters, see AdmissionController.snapshot().
+     */
+    long[] admissionSnapshot(boolean reset) {
+        return mAdmission.snapshot(reset);
+    }
+
+    /**
+     * Sets where the response handlers are called.
+     *
+     * @param executor - the executor that calls the handlers, or null to call them inline.
+     */
+    void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor != null ? executor : INLINE;
+    }
+
+    /**
+     * Runs the calls to the response handlers of a completed operation on the callback executor.
+     * If the executor rejects them, such as after being shut down, they are run inline so the
+     * handlers are still called.
+     */
+    void executeCallback(Runnable callback) {
+        try {
+            mCallbackExecutor.execute(callback);
+        } catch (RejectedExecutionException e) {
+            if (SupportLog.isLoggable(SupportLog.WARN)) {
+                SupportLog.w(TAG, "Callback executor rejected the result, delivering inline");
+            }
+            callback.run();
+        }
+    }
+
+    private RetryPolicy retryPolicy(int maxRetries) {
+        RetryPolicy policy = mRetryPolicy;
+        return maxRetries == DEFAULT_RETRIES ? policy : policy.withMaxRetries(maxRetries);
+    }
+
+    /**
+     * Makes the first backend call of an operation, once admitted.  An operation over the
+     * admission caps is queued, fails with TOO_MANY_OPERATIONS, or replaces the oldest one of
+     * the same kind, which completes with REPLACED.  A replacing operation is queued until the
+     * backend call of the replaced one returns, right away if that call was not issued yet.
+     */
+    private void start(Attempt attempt) {
+        mAttempts.put(attempt.mId, attempt);
+        long admission = mAdmission.admit(attempt.mId, attempt.mOp);
+        if (admission == AdmissionController.REJECTED) {
+            TraceBuffer.record(attempt.mId, TraceBuffer.EVENT_ADMISSION_REJECTED);
+            deliverResult(attempt.mId, StatusCodes.TOO_MANY_OPERATIONS,
+                    null, null, null, null, null);
+            return;
+        }
+        boolean queued = admission != AdmissionController.ADMITTED;
+        if (queued && admission != AdmissionController.QUEUED) {
+            TraceBuffer.record(attempt.mId, TraceBuffer.EVENT_ADMISSION_REPLACED, admission);
+            if (mResponseHandlers.complete(admission, StatusCodes.REPLACED,
+                    null, null, null, null, null)) {
+                abandoned(admission);
+            }
+        }
+        if (mAttempts.get(attempt.mId) != attempt || !isWaitingForResult(attempt.mId)) {
+            // It expired while starting, so forget() ran before it was admitted and did not
+            // release the slot.  Nobody gets the result, it only ends the operation.
+            TraceBuffer.record(attempt.mId, TraceBuffer.EVENT_SKIPPED);
+            startAdmitted(mAdmission.release(attempt.mId, attempt.mOp));
+            deliverResult(attempt.mId, StatusCodes.CANCELED, null, null, null, null, null);
+            return;
+        }
+        if (admission == AdmissionController.QUEUED) {
+            TraceBuffer.record(attempt.mId, TraceBuffer.EVENT_ADMISSION_QUEUED);
+        }
+        if (!queued) {
+            run(attempt);
+        }
+    }
+
+    /**
+     * Makes the backend call of an admitted operation, unless the circuit breaker is open, in
+     * which case the operation fails right away with API_NOT_CONNECTED.
+     */
+    private void run(Attempt attempt) {
+        if (!mCircuitBreaker.allowRequest(attempt.mId)) {
+            TraceBuffer.record(attempt.mId, TraceBuffer.EVENT_CIRCUIT_OPEN);
+            deliverResult(attempt.mId, StatusCodes.API_NOT_CONNECTED,
+                    null, null, null, null, null);
+            return;
+        }
+        attempt.run();
+    }
+
+    /**
+     * Starts the queued operation admitted when another one completed.
+     *
+     * @param operationId - the id returned by forget(), 0 if none was admitted.
+     */
+    private void startAdmitted(long operationId) {
+        if (operationId == 0) {
+            return;
+        }
+        Attempt attempt = mAttempts.get(operationId);
+        if (attempt == null) {
+            return;
+        }
+        try {
+            run(attempt);
+        } catch (Throwable t) {
+            TraceBuffer.record(operationId, TraceBuffer.EVENT_START_FAILED);
+            deliverResult(operationId, StatusCodes.ERROR, null, null, null, null, null);
+        }
+    }
+
+    /**
+     * Marks the backend call of an operation as completed and releases its admission slot.
+     *
+     * @return the id of the queued operation admitted in its place, to pass to startAdmitted().
+     */
+    private long forget(long operationId) {
+        Attempt attempt = mAttempts.remove(operationId);
+        if (attempt == null) {
+            return 0;
+        }
+        attempt.mState.set(STATE_COMPLETED);
+        return mAdmission.release(operationId, attempt.mOp);
+    }
+
+    /**
+     * Schedules the next backend call of an operation that failed with a transient error.
+     *
+     * @return true if the call was scheduled, false if the failure is to be delivered.
+     */
+    private boolean retry(long operationId, int resultCode) {
+        final Attempt attempt = mAttempts.get(operationId);
+        if (attempt == null || attempt.mRetriesLeft <= 0 || !isWaitingForResult(operationId)
+                || !mCircuitBreaker.allowRequest(operationId)) {
+            return false;
+        }
+        int retries = attempt.mRetryPolicy.mMaxRetries - attempt.mRetriesLeft;
+        attempt.mRetriesLeft--;
+        attempt.mState.set(STATE_NOT_STARTED);
+        TraceBuffer.record(operationId, TraceBuffer.EVENT_RETRY, resultCode);
+        mResponseHandlers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!isWaitingForResult(attempt.mId)) {
+                    // Nobody gets this result, it only ends the operation.
+                    deliverResult(attempt.mId, StatusCodes.CANCELED, null, null, null, null, null);
+                    return;
+                }
+                try {
+                    attempt.run();
+                } catch (Throwable t) {
+                    TraceBuffer.record(attempt.mId, TraceBuffer.EVENT_START_FAILED);
+                    deliverResult(attempt.mId, StatusCodes.ERROR, null, null, null, null, null);
+                }
+            }
+        }, attempt.mRetryPolicy.delayMillis(retries));
+        return true;
+    }
+
+    private void abandoned(long operationId) {
+        // A load goes on while loads attached to it wait for its result.  Otherwise its group
+        // ends now: it may never run if it is queued, and new loads are not to attach to it.
+        // Checked with the coalescer locked so no load attaches in between.
+        synchronized (mInFlightLoads) {
+            if (isWaitingForResult(operationId)) {
+                return;
+            }
+            mInFlightLoads.finish(operationId);
+        }
+        Attempt attempt = mAttempts.get(operationId);
+        long admitted = 0;
+        if (attempt == null
+                || attempt.mState.compareAndSet(STATE_NOT_STARTED, STATE_COMPLETED)) {
+            admitted = forget(operationId);
+        }
+        // Otherwise its backend call was issued, and it keeps its admission slot until the
+        // call returns to deliverResult().
+        mSaves.remove(operationId);
+        if (mListener != null) {
+            mListener.onAbandoned(operationId);
+        }
+        startAdmitted(admitted);
+    }
+
+    /**
+     * A backend call of an operation, kept so it can be made again after a transient failure.
+     */
+    private abstract static class Attempt {
+        final long mId;
+        final int mOp;
+        final RetryPolicy mRetryPolicy;
+        // The credential a save or delete changes, null for loads.
+        final String mCredentialId;
+        final String mCredentialAccountType;
+        final AtomicInteger mState = new AtomicInteger(STATE_NOT_STARTED);
+        // Only changed by the delivery of the operation's result, which is never concurrent.
+        volatile int mRetriesLeft;
+
+        Attempt(long id, int op, RetryPolicy retryPolicy) {
+            this(id, op, retryPolicy, null, null);
+        }
+
+        Attempt(long id, int op, RetryPolicy retryPolicy, String credentialId,
+                String credentialAccountType) {
+            mId = id;
+            mOp = op;
+            mRetryPolicy = retryPolicy;
+            mCredentialId = credentialId;
+            mCredentialAccountType = credentialAccountType;
+            mRetriesLeft = retryPolicy.mMaxRetries;
+        }
+
+        abstract void run();
+    }
+}
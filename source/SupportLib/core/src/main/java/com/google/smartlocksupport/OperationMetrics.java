@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on aggregate metrics of the operations: a latency histogram per operation, a counter
+ * per result code, and counters of how operations completed.  All the state is allocated up
+ * front, and recording only does atomic adds, so it is safe and cheap to call from any thread.
+ * <p/>
+ * snapshot() returns everything as a single long[] with this layout:
+ * <pre>
+ * [0]                      SNAPSHOT_VERSION
+ * [1]                      BUCKET_COUNT
+ * [2]                      STATUS_SLOTS
+ * then for read, save and delete, in that order, OP_STRIDE values:
+ *   count, total latency in microseconds, max latency in microseconds,
+ *   BUCKET_COUNT bucket counts.  Bucket 0 counts latencies under 1ms, bucket i
+ *   latencies in [2^(i-1), 2^i) ms, and the last bucket everything above.
+ * then COMPLETION_COUNT completion counters: silent success, resolution required,
+ *   resolution canceled, save skipped as identical to a recent save.
+ * then STATUS_SLOTS result code counters.  Slot i counts result code i - 1 (so slot 0 is
+ *   SUCCESS_CACHE), and the last slot counts any other code.
+ * </pre>
+ */
+final class OperationMetrics {
+
+    static final int SNAPSHOT_VERSION = 2;
+    static final int BUCKET_COUNT = 18;
+    static final int STATUS_SLOTS = 24;
+
+    // How operations completed.
+    static final int COMPLETION_SILENT_SUCCESS = 0;
+    static final int COMPLETION_RESOLUTION_REQUIRED = 1;
+    static final int COMPLETION_RESOLUTION_CANCELED = 2;
+    static final int COMPLETION_SAVE_SKIPPED = 3;
+    static final int COMPLETION_COUNT = 4;
+
+    private static final int OP_COUNT = 3;
+    private static final int OP_COUNT_INDEX = 0;
+    private static final int OP_TOTAL_INDEX = 1;
+    private static final int OP_MAX_INDEX = 2;
+    private static final int OP_BUCKETS_INDEX = 3;
+    static final int OP_STRIDE = OP_BUCKETS_INDEX + BUCKET_COUNT;
+
+    private static final int HEADER_SIZE = 3;
+    private static final int OPS_OFFSET = HEADER_SIZE;
+    private static final int COMPLETIONS_OFFSET = OPS_OFFSET + OP_COUNT * OP_STRIDE;
+    private static final int STATUS_OFFSET = COMPLETIONS_OFFSET + COMPLETION_COUNT;
+    static final int SNAPSHOT_SIZE = STATUS_OFFSET + STATUS_SLOTS;
+
+    // Laid out like the snapshot, the header slots are unused.
+    private static final AtomicLongArray values = new AtomicLongArray(SNAPSHOT_SIZE);
+
+    private OperationMetrics() {
+    }
+
+    /**
+     * Records a completed operation.
+     *
+     * @param op           - the operation, one of the SmartLockSupportTraceListener OP_ constants.
+     * @param resultCode   - the result code passed to the response handler.
+     * @param latencyNanos - the time from the operation's entry to its completion.
+     */
+    static void record(int op, int resultCode, long latencyNanos) {
+        int opIndex = opIndex(op);
+        if (opIndex < 0) {
+            // Not an operation somebody asked for, such as a prefetch.
+            return;
+        }
+        long micros = Math.max(0, latencyNanos / 1000);
+        int base = OPS_OFFSET + opIndex * OP_STRIDE;
+        values.incrementAndGet(base + OP_COUNT_INDEX);
+        values.addAndGet(base + OP_TOTAL_INDEX, micros);
+        long max;
+        while (micros > (max = values.get(base + OP_MAX_INDEX))
+                && !values.compareAndSet(base + OP_MAX_INDEX, max, micros)) {
+            // retry
+        }
+        values.incrementAndGet(base + OP_BUCKETS_INDEX + bucket(micros / 1000));
+        int slot = resultCode + 1;
+        if (slot < 0 || slot >= STATUS_SLOTS - 1) {
+            slot = STATUS_SLOTS - 1;
+        }
+        values.incrementAndGet(STATUS_OFFSET + slot);
+    }
+
+    /**
+     * Counts how an operation completed.
+     *
+     * @param completion - one of the COMPLETION_ constants.
+     */
+    static void countCompletion(int completion) {
+        values.incrementAndGet(COMPLETIONS_OFFSET + completion);
+    }
+
+    /**
+     * Returns the metrics in the layout described above.
+     *
+     * @param reset - true to reset the metrics after reading them.
+     */
+    static long[] snapshot(boolean reset) {
+        long[] snapshot = new long[SNAPSHOT_SIZE];
+        snapshot[0] = SNAPSHOT_VERSION;
+        snapshot[1] = BUCKET_COUNT;
+        snapshot[2] = STATUS_SLOTS;
+        for (int i = HEADER_SIZE; i < SNAPSHOT_SIZE; i++) {
+            snapshot[i] = reset ? values.getAndSet(i, 0) : values.get(i);
+        }
+        return snapshot;
+    }
+
+    // Returns the histogram bucket of a latency in milliseconds.
+    private static int bucket(long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    static int opIndex(int op) {
+        switch (op) {
+            case SmartLockSupportTraceListener.OP_READ:
+                return 0;
+            case SmartLockSupportTraceListener.OP_SAVE:
+                return 1;
+            case SmartLockSupportTraceListener.OP_DELETE:
+                return 2;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records when each operation reaches each phase and reports the breakdown to the registered
+ * SmartLockSupportTraceListener when the operation completes.  When no listener is registered,
+ * every method returns after reading one volatile field.
+ */
+final class OperationTracer {
+
+    private static final String TAG = "SmartLockTracer";
+
+    private static volatile SmartLockSupportTraceListener listener;
+
+    private static final ConcurrentHashMap<Long, Trace> traces = new ConcurrentHashMap<>();
+
+    private OperationTracer() {
+    }
+
+    static void setListener(SmartLockSupportTraceListener traceListener) {
+        listener = traceListener;
+        if (traceListener == null) {
+            traces.clear();
+        }
+    }
+
+    /**
+     * @return the time to pass to begin(), read when entering the operation.
+     */
+    static long now() {
+        return listener != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Starts tracing an operation.
+     *
+     * @param id         - the id of the operation.
+     * @param op         - the operation, one of the OP_ constants.
+     * @param entryNanos - the time returned by now() when entering the operation.
+     */
+    static void begin(long id, int op, long entryNanos) {
+        if (listener == null || entryNanos == 0) {
+            return;
+        }
+        traces.put(id, new Trace(op, entryNanos));
+    }
+
+    /**
+     * Records that the operation reached the phase.
+     */
+    static void mark(long id, int phase) {
+        if (listener == null) {
+            return;
+        }
+        Trace trace = traces.get(id);
+        if (trace != null) {
+            trace.mark(phase, System.nanoTime());
+        }
+    }
+
+    /**
+     * Records that the response handler of the operation was called, and reports the trace.
+     */
+    static void complete(long id, int resultCode) {
+        SmartLockSupportTraceListener traceListener = listener;
+        if (traceListener == null) {
+            return;
+        }
+        Trace trace = traces.remove(id);
+        if (trace == null) {
+            return;
+        }
+        long[] phaseNanos = trace.complete(System.nanoTime());
+        try {
+            traceListener.OnTrace(id, trace.mOp, resultCode, phaseNanos);
+        } catch (Throwable t) {
+            if (SupportLog.isLoggable(SupportLog.WARN)) {
+                SupportLog.w(TAG, "Caught throwable calling traceListener: " + t.getMessage());
+            }
+        }
+    }
+
+    private static final class Trace {
+        // System.nanoTime() can be negative, so a phase not reached is marked with this.
+        private static final long NOT_REACHED = Long.MIN_VALUE;
+
+        final int mOp;
+        private final long[] mPhaseNanos = new long[SmartLockSupportTraceListener.PHASE_COUNT];
+
+        Trace(int op, long entryNanos) {
+            mOp = op;
+            Arrays.fill(mPhaseNanos, NOT_REACHED);
+            mPhaseNanos[SmartLockSupportTraceListener.PHASE_ENTRY] = entryNanos;
+        }
+
+        synchronized void mark(int phase, long nanos) {
+            mPhaseNanos[phase] = nanos;
+        }
+
+        // Returns the phase times relative to the entry.
+        synchronized long[] complete(long nanos) {
+            mPhaseNanos[SmartLockSupportTraceListener.PHASE_COMPLETE] = nanos;
+            long entry = mPhaseNanos[SmartLockSupportTraceListener.PHASE_ENTRY];
+            long[] relative = new long[mPhaseNanos.length];
+            for (int i = 0; i < relative.length; i++) {
+                relative[i] = mPhaseNanos[i] != NOT_REACHED ? mPhaseNanos[i] - entry : -1;
+            }
+            return relative;
+        }
+    }
+}
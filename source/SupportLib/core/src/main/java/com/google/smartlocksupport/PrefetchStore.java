@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smartlocksupport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the speculative loads started before anybody asked for a credential, keyed by the
+ * normalized account types of the load (see LoadCoalescer.normalize).  A successful result is
+ * held for a short time so the first load for the same account types completes immediately, and
+ * loads started while the prefetch is in flight wait for it.  Each result is handed out once.
+ * <p/>
+ * All the methods are synchronized, so loads can be started from any thread and prefetches
+ * completed from the main thread.
+ */
+class PrefetchStore {
+
+    private static final List<Waiter> NO_WAITERS = Collections.emptyList();
+
+    // normalized account types -> the prefetch in flight or holding a result for them.
+    private final HashMap<String, Prefetch> mPrefetches = new HashMap<>();
+
+    /**
+     * Starts tracking a prefetch.
+     *
+     * @param key        - the normalized account types.
+     * @param generation - the credential cache generation when the prefetch starts.
+     * @param holdMillis - how long a successful result is held.
+     * @return the prefetch, or null if one for the same account types is in flight or holding
+     * a result.
+     */
+    synchronized Prefetch start(String key, long generation, long holdMillis) {
+        Prefetch existing = mPrefetches.get(key);
+        if (existing != null && (!existing.mDone || !existing.isExpired(System.nanoTime()))) {
+            return null;
+        }
+        Prefetch prefetch = new Prefetch(key, generation, holdMillis);
+        mPrefetches.put(key, prefetch);
+        return prefetch;
+    }
+
+    /**
+     * Removes and returns the result held for the account types.
+     *
+     * @return the result, or null if there is none or it expired.
+     */
+    synchronized CredentialCache.Entry take(String key) {
+        Prefetch prefetch = mPrefetches.get(key);
+        if (prefetch == null || !prefetch.mDone) {
+            return null;
+        }
+        mPrefetches.remove(key);
+        return prefetch.isExpired(System.nanoTime()) ? null : prefetch.mResult;
+    }
+
+    /**
+     * Makes a load wait for the prefetch of its account types, if one is in flight.
+     *
+     * @return true if the load waits for the prefetch, false if there is none in flight.
+     */
+    synchronized boolean park(String key, Waiter waiter) {
+        Prefetch prefetch = mPrefetches.get(key);
+        if (prefetch == null || prefetch.mDone) {
+            return false;
+        }
+        prefetch.mWaiters.add(waiter);
+        return true;
+    }
+
+    /**
+     * Ends a prefetch.  The result is held only if it is a success nobody was waiting for and
+     * no save or delete happened since the prefetch started.
+     *
+     * @param prefetch   - the prefetch returned by start().
+     * @param resultCode - the result code of the load.
+     * @param stale      - true if the credentials may have changed since the prefetch started.
+     * @return the loads that were waiting for the prefetch.
+     */
+    synchronized List<Waiter> finish(Prefetch prefetch, int resultCode, String id,
+                                     String password, String name, String accountType,
+                                     String profilePictureURL, boolean stale) {
+        if (prefetch.mDone) {
+            return NO_WAITERS;
+        }
+        prefetch.mDone = true;
+        List<Waiter> waiters = prefetch.mWaiters;
+        if (resultCode == StatusCodes.SUCCESS && waiters.isEmpty() && !stale) {
+            long now = System.nanoTime();
+            prefetch.mResult = new CredentialCache.Entry(id, password, name, accountType,
+                    profilePictureURL, now + prefetch.mHoldNanos);
+        } else if (mPrefetches.get(prefetch.mKey) == prefetch) {
+            mPrefetches.remove(prefetch.mKey);
+        }
+        return waiters;
+    }
+
+    /**
+     * Drops the held results, because a save or delete may have changed the credentials.
+     * Prefetches in flight are left to finish, and the loads waiting for them still get their
+     * result.
+     */
+    synchronized void invalidate() {
+        Iterator<Prefetch> it = mPrefetches.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().mDone) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A prefetch in flight or holding its result.
+     */
+    static final class Prefetch {
+        final String mKey;
+        final long mGeneration;
+        private final long mHoldNanos;
+        private final ArrayList<Waiter> mWaiters = new ArrayList<>();
+        private boolean mDone;
+        private CredentialCache.Entry mResult;
+
+        Prefetch(String key, long generation, long holdMillis) {
+            mKey = key;
+            mGeneration = generation;
+            mHoldNanos = TimeUnit.MILLISECONDS.toNanos(holdMillis);
+        }
+
+        private boolean isExpired(long now) {
+            return mResult == null || now - mResult.mExpiresAtNanos >= 0;
+        }
+    }
+
+    /**
+     * A load waiting for a prefetch.  If the prefetch fails, the load is started on its own.
+     */
+    static final class Waiter {
+        final long mId;
+        final CredentialsBackend mBackend;
+        final int mMaxRetries;
+        final String[] mAccountTypes;
+
+        Waiter(long id, CredentialsBackend backend, int maxRetries, String[] accountTypes) {
+            mId = id;
+            mBackend = backend;
+            mMaxRetries = maxRetries;
+            mAccountTypes = accountTypes;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the response handlers of the operations in flight.  Handlers are registered from
+ * the calling thread (such as the Unity thread) and completed from the main thread, so the
+ * registry is safe to use from any thread.
+ * <p/>
+ * Each handler is keyed by a monotonically allocated id.  Completing an id removes it atomically,
+ * so a handler is called at most once even if the operation completes at the same time it
+ * times out or is canceled.  Every operation has a deadline, and operations that nobody completes
+ * before it are completed with TIMEOUT by a background thread, so every handler is called
+ * exactly once.  The deadline of an operation is canceled when it completes, so the timer only
+ * holds the operations in flight.
+ */
+class ResponseHandlerRegistry {
+
+    private static final String TAG = "SmartLockRegistry";
+
+    // The deadline of operations that do not set their own.  This is long enough to cover the
+    // user interacting with a resolution.
+    static final long DEFAULT_EXPIRY_MS = 5 * 60 * 1000;
+
+    // Where canceled deadlines cannot be removed right away (before Android 5.0), the number of
+    // canceled deadlines between two purges of the timer queue.
+    private static final int PURGE_INTERVAL = 256;
+
+    /**
+     * Listener notified when an operation is completed because its deadline passed.
+     */
+    interface OnExpiredListener {
+        void onExpired(long id);
+    }
+
+    private final ConcurrentHashMap<Long, Entry> mEntries = new ConcurrentHashMap<>();
+    private final AtomicLong mNextId = new AtomicLong(1);
+    private final long mDefaultTimeoutMillis;
+    private final OnExpiredListener mOnExpiredListener;
+    private final ScheduledThreadPoolExecutor mReaper;
+    // null if canceled deadlines are removed from the queue right away.
+    private final AtomicInteger mCanceledSincePurge;
+
+    /**
+     * @param defaultTimeoutMillis - the deadline of operations registered without one.
+     * @param onExpiredListener    - notified after an operation times out, may be null.
+     */
+    ResponseHandlerRegistry(long defaultTimeoutMillis, OnExpiredListener onExpiredListener) {
+        mDefaultTimeoutMillis = defaultTimeoutMillis;
+        mOnExpiredListener = onExpiredListener;
+        // The thread is only started when the first deadline is scheduled.
+        mReaper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SmartLockReaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        AtomicInteger canceledSincePurge = null;
+        try {
+            mReaper.setRemoveOnCancelPolicy(true);
+        } catch (NoSuchMethodError e) {
+            canceledSincePurge = new AtomicInteger();
+        }
+        mCanceledSincePurge = canceledSincePurge;
+    }
+
+    /**
+     * Registers the handler of a new operation.
+     *
+     * @param responseHandler - the handler object to call back when complete.
+     * @param op              - the operation, one of the SmartLockSupportTraceListener OP_ constants.
+     * @param timeoutMillis   - the time the operation has to complete, 0 for the default.
+     * @return the id of the operation, never 0.
+     */
+    long register(SmartLockSupportResponseHandler responseHandler, int op, long timeoutMillis) {
+        final long id = mNextId.getAndIncrement();
+        Entry entry = new Entry(responseHandler, op, System.nanoTime());
+        mEntries.put(id, entry);
+        entry.mExpiry = mReaper.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(id);
+            }
+        }, timeoutMillis > 0 ? timeoutMillis : mDefaultTimeoutMillis, TimeUnit.MILLISECONDS);
+        if (mEntries.get(id) != entry) {
+            // Completed before its deadline was set, so complete() could not cancel it.
+            cancelExpiry(entry);
+        }
+        return id;
+    }
+
+    /**
+     * Runs the task on the thread that expires the operations, after the delay.  The library
+     * uses this one thread for all its timers.
+     */
+    void schedule(Runnable task, long delayMillis) {
+        mReaper.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the operation has not been completed yet.
+     */
+    boolean contains(long id) {
+        return mEntries.containsKey(id);
+    }
+
+    /**
+     * Removes the handler without calling it.
+     *
+     * @param id - the id of the operation.
+     * @return the handler, or null if the operation was already completed.
+     */
+    SmartLockSupportResponseHandler remove(long id) {
+        Entry entry = mEntries.remove(id);
+        if (entry == null) {
+            return null;
+        }
+        cancelExpiry(entry);
+        return entry.mResponseHandler;
+    }
+
+    /**
+     * Removes the handler of the operation and invokes it with the result.  The operation is
+     * recorded in the metrics.
+     *
+     * @param id                - the id of the operation.
+     * @param resultCode        - the result code of the operation.
+     * @param credentialId      - the credential id
+     * @param password          - the credential password.
+     * @param name              - the credential display name.
+     * @param accountType       - the account type
+     * @param profilePictureURL - the profile picture.
+     * @return true if the handler was called, false if the operation was already completed.
+     */
+    boolean complete(long id, int resultCode, String credentialId, String password, String name,
+                     String accountType, String profilePictureURL) {
+        Entry entry = mEntries.remove(id);
+        if (entry == null) {
+            TraceBuffer.record(id, TraceBuffer.EVENT_NOT_WAITING);
+            return false;
+        }
+        cancelExpiry(entry);
+        deliver(id, entry, resultCode, credentialId, password, name, accountType,
+                profilePictureURL);
+        return true;
+    }
+
+    private static void deliver(long id, Entry entry, int resultCode, String credentialId,
+                                String password, String name, String accountType,
+                                String profilePictureURL) {
+        OperationMetrics.record(entry.mOp, resultCode, System.nanoTime() - entry.mStartedNanos);
+        TraceBuffer.record(id, TraceBuffer.EVENT_COMPLETE, resultCode);
+        try {
+            entry.mResponseHandler.OnResult(resultCode, orEmpty(credentialId), orEmpty(password),
+                    orEmpty(name), orEmpty(accountType), orEmpty(profilePictureURL));
+        } catch (Throwable t) {
+            TraceBuffer.record(id, TraceBuffer.EVENT_HANDLER_THREW);
+            if (SupportLog.isLoggable(SupportLog.WARN)) {
+                SupportLog.w(TAG, "Caught throwable calling responseHandler: " + t.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the value, or "" if null.  The handlers get "" for the fields of a result that
+     * are missing, never null.
+     */
+    static String orEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    /**
+     * @return the number of operations in flight.
+     */
+    int size() {
+        return mEntries.size();
+    }
+
+    private void cancelExpiry(Entry entry) {
+        ScheduledFuture<?> expiry = entry.mExpiry;
+        if (expiry == null || !expiry.cancel(false) || mCanceledSincePurge == null) {
+            return;
+        }
+        if (mCanceledSincePurge.incrementAndGet() >= PURGE_INTERVAL) {
+            mCanceledSincePurge.set(0);
+            mReaper.purge();
+        }
+    }
+
+    private void expire(long id) {
+        Entry entry = mEntries.remove(id);
+        if (entry == null) {
+            return;
+        }
+        TraceBuffer.record(id, TraceBuffer.EVENT_TIMEOUT);
+        deliver(id, entry, StatusCodes.TIMEOUT, null, null, null, null, null);
+        if (mOnExpiredListener != null) {
+            mOnExpiredListener.onExpired(id);
+        }
+    }
+
+    private static final class Entry {
+        final SmartLockSupportResponseHandler mResponseHandler;
+        final int mOp;
+        final long mStartedNanos;
+        // Set right after the entry is registered.
+        volatile ScheduledFuture<?> mExpiry;
+
+        Entry(SmartLockSupportResponseHandler responseHandler, int op, long startedNanos) {
+            mResponseHandler = responseHandler;
+            mOp = op;
+            mStartedNanos = startedNanos;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smartlocksupport;
+
+import java.util.Random;
+
+/**
+ * How an operation that failed with a transient error is retried: up to a number of times, with
+ * an exponential backoff between attempts.  Each delay is picked at random between half and all
+ * of the backoff, so operations that failed together do not all retry at the same moment.
+ */
+final class RetryPolicy {
+
+    static final RetryPolicy DEFAULT = new RetryPolicy(2, 500, 8000);
+
+    private static final Random random = new Random();
+
+    final int mMaxRetries;
+    final long mBaseDelayMillis;
+    final long mMaxDelayMillis;
+
+    /**
+     * @param maxRetries      - the number of times an operation is retried, 0 for never.
+     * @param baseDelayMillis - the backoff before the first retry, doubled for each retry after.
+     * @param maxDelayMillis  - the maximum backoff.
+     */
+    RetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+        mMaxRetries = Math.max(0, maxRetries);
+        mBaseDelayMillis = Math.max(1, baseDelayMillis);
+        mMaxDelayMillis = Math.max(mBaseDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * Returns this policy with a different number of retries.
+     */
+    RetryPolicy withMaxRetries(int maxRetries) {
+        return maxRetries == mMaxRetries
+                ? this : new RetryPolicy(maxRetries, mBaseDelayMillis, mMaxDelayMillis);
+    }
+
+    /**
+     * Returns the delay before a retry.
+     *
+     * @param retry - the number of retries already made.
+     */
+    long delayMillis(int retry) {
+        long backoff = Math.min(mBaseDelayMillis << Math.min(retry, 20), mMaxDelayMillis);
+        long half = backoff / 2;
+        return half + (long) (random.nextDouble() * (backoff - half));
+    }
+
+    /**
+     * Returns true if an operation that failed with the code may succeed if made again.  These
+     * are the network, internal, interrupted and timeout errors of the Credentials API, and
+     * API_NOT_CONNECTED, which the operations get when the connection fails, such as while
+     * Google Play services is updating.
+     */
+    static boolean isTransient(int resultCode) {
+        switch (resultCode) {
+            case StatusCodes.NETWORK_ERROR:
+            case StatusCodes.INTERNAL_ERROR:
+            case StatusCodes.INTERRUPTED:
+            case StatusCodes.TIMEOUT:
+            case StatusCodes.API_NOT_CONNECTED:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the credentials saved successfully, so a save of the same credential soon after can
+ * complete without calling the Credentials API.  Only salted digests are kept: a SHA-256 of the
+ * credential id keys each entry, and a SHA-256 of all the fields of the credential is compared.
+ * The salt is random for each process, so the digests cannot be matched against anything kept
+ * elsewhere.  Disabled until configured with a positive time to live.
+ * <p/>
+ * A delete of the id removes its entry.  Like the credential cache, a save can only store its
+ * digest if no delete or clear happened since it started, so a save racing a delete is never
+ * remembered.
+ */
+class SaveDeduplicator {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] mSalt = new byte[16];
+    private final MessageDigest mDigest;
+
+    private long mTtlNanos;
+    private int mMaxEntries;
+    private long mGeneration;
+
+    // key digest -> the last saved credential with that id, eldest first.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    SaveDeduplicator() {
+        new SecureRandom().nextBytes(mSalt);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android release has it, but never dedupe rather than fail the saves.
+            digest = null;
+        }
+        mDigest = digest;
+    }
+
+    /**
+     * Configures the deduplication.  A ttl or size of 0 disables it and forgets the saves.
+     *
+     * @param ttlMillis  - how long a save skips identical saves after it.
+     * @param maxEntries - the maximum number of credential ids remembered.
+     */
+    synchronized void configure(long ttlMillis, int maxEntries) {
+        mTtlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+        mMaxEntries = Math.max(0, maxEntries);
+        if (!isEnabled()) {
+            clear();
+        } else {
+            trim();
+        }
+    }
+
+    synchronized boolean isEnabled() {
+        return mTtlNanos > 0 && mMaxEntries > 0 && mDigest != null;
+    }
+
+    /**
+     * Returns the save to pass to saved() once it succeeds, or null if the identical credential
+     * was saved recently and this save can be skipped.
+     */
+    synchronized Save check(String id, String password, String accountType, String name,
+                            String profilePictureURL) {
+        Save save = new Save(keyOf(id), digestOf(id, password, accountType, name,
+                profilePictureURL), mGeneration);
+        Entry entry = mEntries.get(save.mKey);
+        if (entry == null) {
+            return save;
+        }
+        if (System.nanoTime() - entry.mExpiresAtNanos >= 0) {
+            mEntries.remove(save.mKey);
+            return save;
+        }
+        return MessageDigest.isEqual(entry.mDigest, save.mDigest) ? null : save;
+    }
+
+    /**
+     * Remembers a save that succeeded, unless its id was deleted since it started.
+     */
+    synchronized void saved(Save save) {
+        if (!isEnabled() || save.mGeneration != mGeneration) {
+            return;
+        }
+        mEntries.put(save.mKey, new Entry(save.mDigest, System.nanoTime() + mTtlNanos));
+        trim();
+    }
+
+    /**
+     * Forgets the save of the id, when it is deleted.
+     */
+    synchronized void invalidate(String id) {
+        mGeneration++;
+        if (!mEntries.isEmpty()) {
+            mEntries.remove(keyOf(id));
+        }
+    }
+
+    /**
+     * Forgets all the saves, for example when the user signs out.
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    private void trim() {
+        Iterator<String> it = mEntries.keySet().iterator();
+        while (mEntries.size() > mMaxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private String keyOf(String id) {
+        mDigest.reset();
+        mDigest.update(mSalt);
+        update(id);
+        return toHex(mDigest.digest());
+    }
+
+    private byte[] digestOf(String id, String password, String accountType, String name,
+                            String profilePictureURL) {
+        mDigest.reset();
+        mDigest.update(mSalt);
+        update(id);
+        update(password);
+        update(accountType);
+        update(name);
+        update(profilePictureURL);
+        return mDigest.digest();
+    }
+
+    // Each field is prefixed with its length, so moving characters between fields changes the
+    // digest.  null and "" are the same, as the Credentials API treats them.
+    private void update(String value) {
+        byte[] bytes = value != null ? value.getBytes(UTF_8) : new byte[0];
+        int length = bytes.length;
+        mDigest.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16),
+                (byte) (length >>> 8), (byte) length});
+        mDigest.update(bytes);
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * A save in flight.
+     */
+    static final class Save {
+        final String mKey;
+        final byte[] mDigest;
+        final long mGeneration;
+
+        Save(String key, byte[] digest, long generation) {
+            mKey = key;
+            mDigest = digest;
+            mGeneration = generation;
+        }
+    }
+
+    private static final class Entry {
+        final byte[] mDigest;
+        final long mExpiresAtNanos;
+
+        Entry(byte[] digest, long expiresAtNanos) {
+            mDigest = digest;
+            mExpiresAtNanos = expiresAtNanos;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+/**
+ * Interface for the response handler when saving or deleting a batch of credentials.  It is
+ * called once, after every credential in the batch has been processed.
+ */
+public interface SmartLockSupportBatchResponseHandler
+{
+
+    /**
+     * The callback method for handling the result of the batch.
+     * @param resultCode - SUCCESS if every credential succeeded, otherwise the result code of
+     *                   the first credential that did not.
+     * @param resultCodes - the result code of each credential, in the order they were passed.
+     */
+    void OnBatchResult(int resultCode, int[] resultCodes);
+
+    @Override
+    int hashCode();
+
+    @Override
+    String toString();
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smartlocksupport;
+
+import java.util.ArrayList;
+
+/**
+ * A handle to a credential operation in flight, returned by the doLoadAsync, doSaveAsync and
+ * doDeleteAsync entry points.  The result can be polled without blocking (such as once per frame
+ * from Unity), waited for with a timeout, or received by completion listeners.
+ * <p/>
+ * The handle can be used from any thread.  Never call await() on the main thread: the operation
+ * completes on it.  The listeners are called by the callback executor of the library.
+ */
+public final class SmartLockSupportOperation {
+
+    private static final String TAG = "SmartLockOperation";
+
+    /**
+     * The result code while the operation has not completed.
+     */
+    public static final int PENDING = Integer.MIN_VALUE;
+
+    private final OperationDispatcher mDispatcher;
+    private volatile long mOperationId;
+
+    // Written before mResultCode, which publishes them.
+    private String mCredentialId;
+    private String mPassword;
+    private String mName;
+    private String mAccountType;
+    private String mProfilePictureURL;
+    private volatile int mResultCode = PENDING;
+
+    // Guarded by this, and dropped once complete.
+    private SmartLockSupportResponseHandler mListener;
+    private ArrayList<SmartLockSupportResponseHandler> mMoreListeners;
+
+    // The handler registered for the operation, which completes this.
+    final SmartLockSupportResponseHandler mCompleter = new SmartLockSupportResponseHandler() {
+        @Override
+        public void OnResult(int resultCode, String id, String password, String name,
+                             String accountType, String profilePictureURL) {
+            complete(resultCode, id, password, name, accountType, profilePictureURL);
+        }
+    };
+
+    SmartLockSupportOperation(OperationDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * @return the id of the operation, or 0 if it completed without being started, such as a
+     * load answered from the cache.
+     */
+    public long getOperationId() {
+        return mOperationId;
+    }
+
+    void setOperationId(long operationId) {
+        mOperationId = operationId;
+    }
+
+    /**
+     * @return true if the operation has completed.
+     */
+    public boolean isDone() {
+        return mResultCode != PENDING;
+    }
+
+    /**
+     * @return the result code, or PENDING if the operation has not completed.
+     */
+    public int getResultCode() {
+        return mResultCode;
+    }
+
+    /**
+     * @return the credential id, or null if the operation has not completed.
+     */
+    public String getCredentialId() {
+        return isDone() ? mCredentialId : null;
+    }
+
+    /**
+     * @return the credential password, or null if the operation has not completed.
+     */
+    public String getPassword() {
+        return isDone() ? mPassword : null;
+    }
+
+    /**
+     * @return the credential display name, or null if the operation has not completed.
+     */
+    public String getName() {
+        return isDone() ? mName : null;
+    }
+
+    /**
+     * @return the credential account type, or null if the operation has not completed.
+     */
+    public String getAccountType() {
+        return isDone() ? mAccountType : null;
+    }
+
+    /**
+     * @return the profile picture URL, or null if the operation has not completed.
+     */
+    public String getProfilePictureURL() {
+        return isDone() ? mProfilePictureURL : null;
+    }
+
+    /**
+     * Waits for the operation to complete.  Must not be called on the main thread.
+     *
+     * @param timeoutMillis - the maximum time to wait, 0 to only check.
+     * @return true if the operation has completed, false if the time ran out or the thread was
+     * interrupted.
+     */
+    public boolean await(long timeoutMillis) {
+        if (isDone()) {
+            return true;
+        }
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        synchronized (this) {
+            try {
+                long remaining;
+                while (!isDone() && (remaining = deadline - System.nanoTime()) > 0) {
+                    wait(Math.max(1, remaining / 1000000L));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return isDone();
+    }
+
+    /**
+     * Cancels the operation.  The listeners are called with CANCELED right away, unless the
+     * operation already completed.
+     *
+     * @return true if the operation was canceled, false if it had already completed.
+     */
+    public boolean cancel() {
+        long operationId = mOperationId;
+        return operationId != 0 && mDispatcher.cancel(operationId);
+    }
+
+    /**
+     * Adds a listener called when the operation completes.  If the operation already completed,
+     * the listener is handed to the callback executor right away, so with inline delivery it is
+     * called before this returns.
+     *
+     * @param listener - the listener.
+     * @return this handle.
+     */
+    public SmartLockSupportOperation addListener(SmartLockSupportResponseHandler listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                if (mListener == null) {
+                    mListener = listener;
+                } else {
+                    if (mMoreListeners == null) {
+                        mMoreListeners = new ArrayList<>(2);
+                    }
+                    mMoreListeners.add(listener);
+                }
+                return this;
+            }
+        }
+        callListeners(listener, null, 0);
+        return this;
+    }
+
+    /**
+     * Completes the operation without a credential.  The fields are passed as "", like in the
+     * results delivered by the registry.
+     *
+     * @return true if completed, false if it was already complete.
+     */
+    boolean complete(int resultCode) {
+        return complete(resultCode, "", "", "", "", "");
+    }
+
+    /**
+     * Completes the operation and calls the listeners.  The trace of the operation is reported
+     * once the listeners have been called, or right away if there are none.
+     *
+     * @return true if completed, false if it was already complete.
+     */
+    boolean complete(int resultCode, String id, String password, String name,
+                     String accountType, String profilePictureURL) {
+        long operationId = mOperationId;
+        SmartLockSupportResponseHandler listener;
+        ArrayList<SmartLockSupportResponseHandler> moreListeners;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            mCredentialId = id;
+            mPassword = password;
+            mName = name;
+            mAccountType = accountType;
+            mProfilePictureURL = profilePictureURL;
+            mResultCode = resultCode;
+            listener = mListener;
+            moreListeners = mMoreListeners;
+            mListener = null;
+            mMoreListeners = null;
+            notifyAll();
+        }
+        if (listener != null) {
+            callListeners(listener, moreListeners, operationId);
+        } else {
+            OperationTracer.complete(operationId, resultCode);
+        }
+        return true;
+    }
+
+    /**
+     * @param tracedId - the id whose trace to report after calling the listeners, 0 for none.
+     */
+    private void callListeners(final SmartLockSupportResponseHandler listener,
+                               final ArrayList<SmartLockSupportResponseHandler> moreListeners,
+                               final long tracedId) {
+        mDispatcher.executeCallback(new Runnable() {
+            @Override
+            public void run() {
+                callListener(listener);
+                if (moreListeners != null) {
+                    for (SmartLockSupportResponseHandler more : moreListeners) {
+                        callListener(more);
+                    }
+                }
+                if (tracedId != 0) {
+                    OperationTracer.complete(tracedId, mResultCode);
+                }
+            }
+        });
+    }
+
+    private void callListener(SmartLockSupportResponseHandler listener) {
+        try {
+            listener.OnResult(mResultCode, mCredentialId, mPassword, mName, mAccountType,
+                    mProfilePictureURL);
+        } catch (Throwable t) {
+            TraceBuffer.record(mOperationId, TraceBuffer.EVENT_HANDLER_THREW);
+            if (SupportLog.isLoggable(SupportLog.WARN)) {
+                SupportLog.w(TAG, "Caught throwable calling listener: " + t.getMessage());
+            }
+        }
+    }
+}
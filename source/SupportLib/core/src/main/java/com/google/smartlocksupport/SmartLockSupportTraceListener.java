@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+/**
+ * Interface for receiving the latency breakdown of each operation.  Register an implementation
+ * with SmartLockSupportActivity.setTraceListener().  Operations are only traced while a listener
+ * is registered.
+ */
+public interface SmartLockSupportTraceListener
+{
+    // The operations.
+    int OP_SAVE = 1;
+    int OP_READ = 3;
+    int OP_DELETE = 4;
+
+    // The phases of an operation, in the order they happen.  Phases an operation does not go
+    // through (for example, the resolution phases when no UI was needed) are not reached.
+
+    /** doLoad, doSave or doDelete was called. */
+    int PHASE_ENTRY = 0;
+    /** The operation had to wait for the client to connect. */
+    int PHASE_CONNECT = 1;
+    /** The request was sent to the Credentials API on the connected client. */
+    int PHASE_REQUEST = 2;
+    /** The Credentials API result callback was called. */
+    int PHASE_API_RESULT = 3;
+    /** The activity was started to show a resolution. */
+    int PHASE_START_ACTIVITY = 4;
+    /** The activity was created. */
+    int PHASE_ACTIVITY_CREATE = 5;
+    /** startResolutionForResult was called. */
+    int PHASE_RESOLUTION_START = 6;
+    /** onActivityResult was called with the result of the resolution. */
+    int PHASE_RESOLUTION_RESULT = 7;
+    /** The response handler was called. */
+    int PHASE_COMPLETE = 8;
+
+    int PHASE_COUNT = 9;
+
+    /**
+     * Called after the response handler of an operation was called, on the thread that called it.
+     * @param operationId - the id of the operation.
+     * @param op - the operation, one of the OP_ constants.
+     * @param resultCode - the result code passed to the response handler.
+     * @param phaseNanos - for each phase, the nanoseconds since PHASE_ENTRY when it was reached,
+     *                   or -1 if it was not.  Indexed by the PHASE_ constants.
+     */
+    void OnTrace(long operationId, int op, int resultCode, long[] phaseNanos);
+
+    @Override
+    int hashCode();
+
+    @Override
+    String toString();
+
+}
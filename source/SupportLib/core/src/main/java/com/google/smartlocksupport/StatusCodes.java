@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+/**
+ * The result codes passed to the response handlers.  They have the same values as the Google
+ * Play services CommonStatusCodes, which the core code cannot depend on.
+ */
+final class StatusCodes {
+    // Library codes for operations turned away by the admission caps.
+    static final int REPLACED = -3;
+    static final int TOO_MANY_OPERATIONS = -2;
+    static final int SUCCESS_CACHE = -1;
+    static final int SUCCESS = 0;
+    static final int RESOLUTION_REQUIRED = 6;
+    static final int NETWORK_ERROR = 7;
+    static final int INTERNAL_ERROR = 8;
+    static final int DEVELOPER_ERROR = 10;
+    static final int ERROR = 13;
+    static final int INTERRUPTED = 14;
+    static final int TIMEOUT = 15;
+    static final int CANCELED = 16;
+    static final int API_NOT_CONNECTED = 17;
+
+    private StatusCodes() {
+    }
+}
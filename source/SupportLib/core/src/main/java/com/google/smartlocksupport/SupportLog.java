@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+/**
+ * Logging used by the core code, which cannot call android.util.Log directly.  Messages are
+ * dropped until the platform installs a sink, and logging is off until a level is set, so
+ * release builds spend no time on it.  Callers building a message check isLoggable() first.
+ */
+final class SupportLog {
+
+    // Same values as android.util.Log.
+    static final int DEBUG = 3;
+    static final int WARN = 5;
+    static final int ERROR = 6;
+    static final int OFF = Integer.MAX_VALUE;
+
+    /**
+     * Receives the log messages.
+     */
+    interface Sink {
+        void log(int priority, String tag, String message, Throwable t);
+    }
+
+    private static volatile Sink sink;
+    private static volatile int level = OFF;
+
+    private SupportLog() {
+    }
+
+    static void setSink(Sink logSink) {
+        sink = logSink;
+    }
+
+    /**
+     * Sets the lowest priority logged.
+     *
+     * @param priority - DEBUG, WARN, ERROR, or OFF to log nothing.
+     */
+    static void setLevel(int priority) {
+        level = priority;
+    }
+
+    static boolean isLoggable(int priority) {
+        return priority >= level;
+    }
+
+    static void d(String tag, String message) {
+        log(DEBUG, tag, message, null);
+    }
+
+    static void w(String tag, String message) {
+        log(WARN, tag, message, null);
+    }
+
+    static void e(String tag, String message) {
+        log(ERROR, tag, message, null);
+    }
+
+    static void e(String tag, String message, Throwable t) {
+        log(ERROR, tag, message, t);
+    }
+
+    private static void log(int priority, String tag, String message, Throwable t) {
+        Sink logSink = sink;
+        if (logSink != null && priority >= level) {
+            logSink.log(priority, tag, message, t);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smartlocksupport;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size ring of the most recent events of the operations, kept for bug reports.  Each
+ * event is an operation id, an event code, an argument and a timestamp, written into
+ * preallocated slots without locks or allocation, so recording is cheap enough to leave on in
+ * release builds.  dump() formats the ring on demand.
+ * <p/>
+ * When debug logging is enabled in SupportLog, each event is also written to the log as it is
+ * recorded.
+ */
+final class TraceBuffer {
+
+    private static final String TAG = "SmartLockTrace";
+
+    // Events of an operation.  The argument is noted when there is one.
+    static final int EVENT_LOAD = 1;
+    static final int EVENT_SAVE = 2;
+    static final int EVENT_DELETE = 3;
+    static final int EVENT_CACHE_HIT = 4;
+    // argument: the id of the load it is attached to.
+    static final int EVENT_ATTACHED = 5;
+    static final int EVENT_START_FAILED = 6;
+    static final int EVENT_QUEUED = 7;
+    static final int EVENT_REQUEST = 8;
+    static final int EVENT_SKIPPED = 9;
+    // argument: the status code returned by the API.
+    static final int EVENT_API_RESULT = 10;
+    // argument: the request code of the resolution.
+    static final int EVENT_RESOLUTION_QUEUED = 11;
+    static final int EVENT_RESOLUTION_START = 12;
+    // argument: the activity result code.
+    static final int EVENT_RESOLUTION_RESULT = 13;
+    static final int EVENT_RESOLUTION_CLOSED = 14;
+    static final int EVENT_RESOLUTION_FAILED = 15;
+    // argument: the result code passed to the handler.
+    static final int EVENT_COMPLETE = 16;
+    static final int EVENT_NOT_WAITING = 17;
+    static final int EVENT_HANDLER_THREW = 18;
+    static final int EVENT_TIMEOUT = 19;
+
+    // Events of the client and the activity, recorded with operation id 0.
+    static final int EVENT_CONNECTING = 20;
+    // argument: the number of queued operations.
+    static final int EVENT_CONNECTED = 21;
+    // argument: the cause.
+    static final int EVENT_CONNECTION_SUSPENDED = 22;
+    // argument: the connection result error code.
+    static final int EVENT_CONNECTION_FAILED = 23;
+    static final int EVENT_SESSION_START = 24;
+    static final int EVENT_SESSION_FAILED = 25;
+    static final int EVENT_SESSION_CREATE = 26;
+    static final int EVENT_SESSION_FINISH = 27;
+    // argument: the request code.
+    static final int EVENT_RESULT_IGNORED = 28;
+
+    // More events of an operation.
+    static final int EVENT_PREFETCH = 29;
+    static final int EVENT_PREFETCH_HIT = 30;
+    static final int EVENT_WAITING_FOR_PREFETCH = 31;
+    // argument: the transient result code that is retried.
+    static final int EVENT_RETRY = 32;
+    static final int EVENT_CIRCUIT_OPEN = 33;
+    static final int EVENT_SAVE_SKIPPED = 34;
+    // A request of an operation that was already issued, not made again.
+    static final int EVENT_DUPLICATE_REQUEST = 35;
+    static final int EVENT_ADMISSION_QUEUED = 36;
+    static final int EVENT_ADMISSION_REJECTED = 37;
+    // argument: the id of the operation replaced.
+    static final int EVENT_ADMISSION_REPLACED = 38;
+
+    private static final String[] EVENT_NAMES = {
+            "?",
+            "load",
+            "save",
+            "delete",
+            "cache hit",
+            "attached to",
+            "start failed",
+            "queued until connected",
+            "request",
+            "skipped, nobody waiting",
+            "api result",
+            "resolution queued",
+            "resolution start",
+            "resolution result",
+            "resolution closed",
+            "resolution failed",
+            "complete",
+            "complete, nobody waiting",
+            "handler threw",
+            "timeout",
+            "connecting",
+            "connected",
+            "connection suspended",
+            "connection failed",
+            "session start",
+            "session failed",
+            "session create",
+            "session finish",
+            "result ignored",
+            "prefetch",
+            "prefetch hit",
+            "waiting for prefetch",
+            "retry after",
+            "circuit open",
+            "save skipped, already saved",
+            "duplicate request dropped",
+            "queued for admission",
+            "rejected, too many operations",
+            "replaced",
+    };
+
+    // The events that have an argument, as bits.
+    private static final long EVENTS_WITH_ARG = (1L << EVENT_ATTACHED) | (1L << EVENT_API_RESULT)
+            | (1L << EVENT_RESOLUTION_QUEUED) | (1L << EVENT_RESOLUTION_RESULT)
+            | (1L << EVENT_COMPLETE) | (1L << EVENT_CONNECTED)
+            | (1L << EVENT_CONNECTION_SUSPENDED) | (1L << EVENT_CONNECTION_FAILED)
+            | (1L << EVENT_RESULT_IGNORED) | (1L << EVENT_RETRY)
+            | (1L << EVENT_ADMISSION_REPLACED);
+
+    // Must be a power of 2.
+    private static final int CAPACITY = 512;
+    private static final int MASK = CAPACITY - 1;
+
+    // Each slot is the sequence number of the event in it, then the operation id, the
+    // timestamp, and the event code and argument.  The sequence number is cleared while the
+    // slot is written, so dump() can skip slots that change under it.
+    private static final int SLOT_SIZE = 4;
+    private static final long WRITING = -1;
+    private static final AtomicLongArray slots = newSlots();
+    private static final AtomicLong nextSequence = new AtomicLong();
+
+    private TraceBuffer() {
+    }
+
+    private static AtomicLongArray newSlots() {
+        AtomicLongArray array = new AtomicLongArray(CAPACITY * SLOT_SIZE);
+        for (int i = 0; i < CAPACITY; i++) {
+            array.set(i * SLOT_SIZE, WRITING);
+        }
+        return array;
+    }
+
+    static void record(long id, int event) {
+        record(id, event, 0);
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param id    - the id of the operation, 0 for events that are not about an operation.
+     * @param event - one of the EVENT_ constants.
+     * @param arg   - the argument of the event, 0 if it has none.  Only the low 32 bits are kept.
+     */
+    static void record(long id, int event, long arg) {
+        long nanos = System.nanoTime();
+        long sequence = nextSequence.getAndIncrement();
+        int base = (int) (sequence & MASK) * SLOT_SIZE;
+        slots.set(base, WRITING);
+        slots.lazySet(base + 1, id);
+        slots.lazySet(base + 2, nanos);
+        slots.lazySet(base + 3, ((long) event << 32) | (arg & 0xffffffffL));
+        slots.set(base, sequence);
+        if (SupportLog.isLoggable(SupportLog.DEBUG)) {
+            SupportLog.d(TAG, format(new StringBuilder(), id, event, (int) arg).toString());
+        }
+    }
+
+    /**
+     * Returns the events in the ring, oldest first, one per line.  Each line has the age of the
+     * event in milliseconds relative to the call, the operation id, the event and its argument.
+     */
+    static String dump() {
+        long now = System.nanoTime();
+        long end = nextSequence.get();
+        StringBuilder sb = new StringBuilder();
+        for (long sequence = Math.max(0, end - CAPACITY); sequence < end; sequence++) {
+            int base = (int) (sequence & MASK) * SLOT_SIZE;
+            if (slots.get(base) != sequence) {
+                continue;
+            }
+            long id = slots.get(base + 1);
+            long nanos = slots.get(base + 2);
+            long eventAndArg = slots.get(base + 3);
+            if (slots.get(base) != sequence) {
+                // Overwritten while reading it.
+                continue;
+            }
+            long ageMicros = (now - nanos) / 1000;
+            sb.append('-').append(ageMicros / 1000).append('.');
+            long fraction = ageMicros % 1000;
+            if (fraction < 100) {
+                sb.append(fraction < 10 ? "00" : "0");
+            }
+            sb.append(fraction).append("ms ");
+            format(sb, id, (int) (eventAndArg >>> 32), (int) eventAndArg).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static StringBuilder format(StringBuilder sb, long id, int event, int arg) {
+        if (id != 0) {
+            sb.append('#').append(id).append(' ');
+        }
+        sb.append(event > 0 && event < EVENT_NAMES.length ? EVENT_NAMES[event] : "?");
+        if (event > 0 && event < 64 && (EVENTS_WITH_ARG & (1L << event)) != 0) {
+            sb.append(' ').append(arg);
+        }
+        return sb;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdmissionControllerTest {
+
+    private static final int LOAD = SmartLockSupportTraceListener.OP_READ;
+    private static final int SAVE = SmartLockSupportTraceListener.OP_SAVE;
+
+    private AdmissionController mAdmission;
+
+    @Before
+    public void setUp() {
+        mAdmission = new AdmissionController();
+    }
+
+    @Test
+    public void admitsEverythingUntilConfigured() {
+        for (long id = 1; id <= 1000; id++) {
+            assertEquals(AdmissionController.ADMITTED, mAdmission.admit(id, LOAD));
+        }
+    }
+
+    @Test
+    public void queuePolicyAdmitsQueuedOperationsInOrder() {
+        mAdmission.configure(2, 0, 0, AdmissionController.POLICY_QUEUE);
+        assertEquals(AdmissionController.ADMITTED, mAdmission.admit(1, LOAD));
+        assertEquals(AdmissionController.ADMITTED, mAdmission.admit(2, SAVE));
+        assertEquals(AdmissionController.QUEUED, mAdmission.admit(3, LOAD));
+        assertEquals(AdmissionController.QUEUED, mAdmission.admit(4, SAVE));
+
+        assertEquals(3, mAdmission.release(2, SAVE));
+        assertEquals(4, mAdmission.release(1, LOAD));
+        assertEquals(0, mAdmission.release(3, LOAD));
+        assertEquals(0, mAdmission.release(4, SAVE));
+
+        long[] stats = mAdmission.snapshot(false);
+        assertEquals(0, stats[AdmissionController.STAT_IN_FLIGHT]);
+        assertEquals(0, stats[AdmissionController.STAT_QUEUED]);
+        assertEquals(2, stats[AdmissionController.STAT_MAX_QUEUED]);
+    }
+
+    @Test
+    public void queuePolicyRejectsPastTheQueueCap() {
+        mAdmission.configure(1, 0, 1, AdmissionController.POLICY_QUEUE);
+        assertEquals(AdmissionController.ADMITTED, mAdmission.admit(1, LOAD));
+        assertEquals(AdmissionController.QUEUED, mAdmission.admit(2, LOAD));
+        assertEquals(AdmissionController.REJECTED, mAdmission.admit(3, LOAD));
+        assertEquals(1, mAdmission.snapshot(false)[AdmissionController.STAT_REJECTED]);
+    }
+
+    @Test
+    public void perOperationCapLetsOtherKindsIn() {
+        mAdmission.configure(0, 1, 0, AdmissionController.POLICY_QUEUE);
+        assertEquals(AdmissionController.ADMITTED, mAdmission.admit(1, LOAD));
+        assertEquals(AdmissionController.QUEUED, mAdmission.admit(2, LOAD));
+        assertEquals(AdmissionController.ADMITTED, mAdmission.admit(3, SAVE));
+
+        // The queued load waits for a load slot, not for the save.
+        assertEquals(0, mAdmission.release(3, SAVE));
+        assertEquals(2, mAdmission.release(1, LOAD));
+    }
+
+    @Test
+    public void releasingAQueuedOperationRemovesItFromTheQueue() {
+        mAdmission.configure(1, 0, 0, AdmissionController.POLICY_QUEUE);
+        mAdmission.admit(1, LOAD);
+        mAdmission.admit(2, LOAD);
+        mAdmission.admit(3, LOAD);
+
+        assertEquals(0, mAdmission.release(2, LOAD));
+        assertEquals(3, mAdmission.release(1, LOAD));
+        assertEquals(0, mAdmission.snapshot(false)[AdmissionController.STAT_QUEUED]);
+    }
+
+    @Test
+    public void rejectPolicyFailsRightAway() {
+        mAdmission.configure(1, 0, 0, AdmissionController.POLICY_REJECT);
+        assertEquals(AdmissionController.ADMITTED, mAdmission.admit(1, LOAD));
+        assertEquals(AdmissionController.REJECTED, mAdmission.admit(2, LOAD));
+        assertEquals(0, mAdmission.release(1, LOAD));
+        assertEquals(AdmissionController.ADMITTED, mAdmission.admit(3, LOAD));
+    }
+
+    @Test
+    public void replaceOldestKeepsTheSlotUntilTheReplacedCallReturns() {
+        mAdmission.configure(2, 0, 0, AdmissionController.POLICY_REPLACE_OLDEST);
+        mAdmission.admit(1, LOAD);
+        mAdmission.admit(2, LOAD);
+
+        assertEquals(1, mAdmission.admit(3, LOAD));
+        assertEquals(2, mAdmission.admit(4, LOAD));
+        // Both in flight are already replaced.
+        assertEquals(AdmissionController.REJECTED, mAdmission.admit(5, LOAD));
+        assertEquals(2, mAdmission.snapshot(false)[AdmissionController.STAT_IN_FLIGHT]);
+
+        assertEquals(3, mAdmission.release(1, LOAD));
+        assertEquals(4, mAdmission.release(2, LOAD));
+
+        long[] stats = mAdmission.snapshot(true);
+        assertEquals(2, stats[AdmissionController.STAT_REPLACED]);
+        assertEquals(1, stats[AdmissionController.STAT_REJECTED]);
+        stats = mAdmission.snapshot(false);
+        assertEquals(0, stats[AdmissionController.STAT_REPLACED]);
+        assertEquals(0, stats[AdmissionController.STAT_REJECTED]);
+    }
+
+    @Test
+    public void replaceOldestRejectsWhenOtherKindsUseTheSlots() {
+        mAdmission.configure(1, 0, 0, AdmissionController.POLICY_REPLACE_OLDEST);
+        mAdmission.admit(1, SAVE);
+        assertEquals(AdmissionController.REJECTED, mAdmission.admit(2, LOAD));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPolicyIsRejected() {
+        mAdmission.configure(1, 1, 1, 42);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompletionQueueTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CAPACITY = CompletionQueue.MIN_CAPACITY;
+
+    private ByteBuffer mBuffer;
+    private CompletionQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mBuffer = ByteBuffer.allocateDirect(CAPACITY).order(ByteOrder.nativeOrder());
+        mQueue = new CompletionQueue(mBuffer);
+    }
+
+    @Test
+    public void emptyPollPublishesNothing() {
+        assertEquals(0, mQueue.poll());
+        assertEquals(0, mBuffer.getInt(8));
+        assertEquals(mBuffer.getInt(0), mBuffer.getInt(4));
+    }
+
+    @Test
+    public void recordsAreWrittenInOrder() {
+        mQueue.handler(7).OnResult(StatusCodes.SUCCESS, "user@example.com", "password", null,
+                "https://accounts.google.com", "");
+        mQueue.handler(8).OnResult(StatusCodes.ERROR, null, null, null, null, null);
+
+        assertEquals(2, mQueue.poll());
+        List<Object[]> records = read(mBuffer);
+        assertEquals(2, records.size());
+        assertArrayEquals(new Object[]{7L, StatusCodes.SUCCESS, "user@example.com", "password",
+                null, "https://accounts.google.com", ""}, records.get(0));
+        assertArrayEquals(new Object[]{8L, StatusCodes.ERROR, null, null, null, null, null},
+                records.get(1));
+    }
+
+    @Test
+    public void stringsAreEncodedAsUtf8() {
+        String[] values = {"caf\u00e9", "\u20ac", "\ud83d\ude00", "lone \ud800 surrogate",
+                "\ude00"};
+        mQueue.handler(1).OnResult(StatusCodes.SUCCESS, values[0], values[1], values[2],
+                values[3], values[4]);
+
+        assertEquals(1, mQueue.poll());
+        Object[] record = read(mBuffer).get(0);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(new String(values[i].getBytes(UTF_8), UTF_8), record[i + 2]);
+        }
+    }
+
+    @Test
+    public void recordsWrapAroundTheEndOfTheBuffer() {
+        long next = 0;
+        long expected = 0;
+        boolean wrapped = false;
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < round % 7; i++) {
+                complete(next++);
+            }
+            int count = mQueue.poll();
+            wrapped |= mBuffer.getInt(0) > mBuffer.getInt(4);
+            for (Object[] record : read(mBuffer)) {
+                assertEquals(expected, record[0]);
+                assertEquals("user" + expected + "@example.com", record[2]);
+                expected++;
+            }
+            assertEquals(count, mBuffer.getInt(8));
+        }
+        while (mQueue.poll() > 0) {
+            expected += read(mBuffer).size();
+        }
+        assertTrue(wrapped);
+        assertEquals(next, expected);
+    }
+
+    @Test
+    public void resultsThatDoNotFitWaitForTheNextPoll() {
+        int written = 0;
+        while (written < 100) {
+            complete(written++);
+        }
+        int published = mQueue.poll();
+        assertTrue(published < written);
+        assertEquals(written - published, mBuffer.getInt(12));
+
+        long expected = 0;
+        while (expected < written) {
+            for (Object[] record : read(mBuffer)) {
+                assertEquals(expected++, record[0]);
+            }
+            mQueue.poll();
+        }
+        assertEquals(0, mBuffer.getInt(12));
+    }
+
+    @Test
+    public void resultTooLargeForTheBufferKeepsOnlyItsCode() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < CAPACITY; i++) {
+            sb.append('x');
+        }
+        mQueue.handler(3).OnResult(StatusCodes.SUCCESS, sb.toString(), null, null, null, null);
+
+        assertEquals(1, mQueue.poll());
+        Object[] record = read(mBuffer).get(0);
+        assertEquals(3L, record[0]);
+        assertEquals(StatusCodes.SUCCESS, record[1]);
+        assertNull(record[2]);
+    }
+
+    @Test
+    public void pollCopiesTheBatchToTheArray() {
+        byte[] copy = new byte[CAPACITY];
+        ByteBuffer view = ByteBuffer.wrap(copy).order(ByteOrder.nativeOrder());
+        long expected = 0;
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < round % 5; i++) {
+                complete(round * 10 + i);
+            }
+            mQueue.poll(copy);
+            List<Object[]> direct = read(mBuffer);
+            List<Object[]> copied = read(view);
+            assertEquals(direct.size(), copied.size());
+            for (int i = 0; i < direct.size(); i++) {
+                assertArrayEquals(direct.get(i), copied.get(i));
+            }
+            expected += copied.size();
+        }
+        assertTrue(expected > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void heapBufferIsRejected() {
+        new CompletionQueue(ByteBuffer.allocate(CAPACITY));
+    }
+
+    // The name varies the size of the records, so they wrap at different offsets.
+    private void complete(long requestId) {
+        mQueue.handler(requestId).OnResult(StatusCodes.SUCCESS,
+                "user" + requestId + "@example.com", "password",
+                "User".substring(0, (int) (requestId % 5)), null, null);
+    }
+
+    // Reads the published batch as {request id, result code, five strings} per record.
+    private static List<Object[]> read(ByteBuffer buffer) {
+        List<Object[]> records = new ArrayList<>();
+        int position = buffer.getInt(0);
+        int count = buffer.getInt(8);
+        for (int i = 0; i < count; i++) {
+            if (position + 16 > buffer.capacity() || buffer.getInt(position) == 0) {
+                position = CompletionQueue.HEADER_SIZE;
+            }
+            Object[] record = new Object[7];
+            record[0] = buffer.getLong(position + 8);
+            record[1] = buffer.getInt(position + 4);
+            int next = position + 16;
+            for (int field = 2; field < record.length; field++) {
+                int length = buffer.getInt(next);
+                next += 4;
+                if (length >= 0) {
+                    byte[] bytes = new byte[length];
+                    for (int b = 0; b < length; b++) {
+                        bytes[b] = buffer.get(next + b);
+                    }
+                    record[field] = new String(bytes, UTF_8);
+                    next += length;
+                }
+            }
+            position += buffer.getInt(position);
+            records.add(record);
+        }
+        assertEquals(buffer.getInt(4), count > 0 ? position : buffer.getInt(0));
+        return records;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CredentialCacheTest {
+
+    private static final String GOOGLE = "https://accounts.google.com";
+    private static final String FACEBOOK = "https://www.facebook.com";
+
+    private CredentialCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new CredentialCache();
+        mCache.configure(60 * 1000, 16);
+    }
+
+    @Test
+    public void disabledUntilConfigured() {
+        CredentialCache cache = new CredentialCache();
+        assertFalse(cache.isEnabled());
+        cache.put(GOOGLE, cache.generation(), "user", null, null, GOOGLE, null);
+        assertNull(cache.get(GOOGLE));
+    }
+
+    @Test
+    public void returnsWhatWasStored() {
+        put(GOOGLE, "user@example.com", GOOGLE);
+        CredentialCache.Entry entry = mCache.get(GOOGLE);
+        assertNotNull(entry);
+        assertEquals("user@example.com", entry.mId);
+        assertEquals(GOOGLE, entry.mAccountType);
+    }
+
+    @Test
+    public void loadStartedBeforeAnInvalidationIsNotStored() {
+        long generation = mCache.generation();
+        mCache.invalidate("user@example.com", GOOGLE);
+        mCache.put(GOOGLE, generation, "user@example.com", null, null, GOOGLE, null);
+        assertNull(mCache.get(GOOGLE));
+
+        put(GOOGLE, "user@example.com", GOOGLE);
+        assertNotNull(mCache.get(GOOGLE));
+    }
+
+    @Test
+    public void invalidateRemovesTheEntriesOfTheAccountTypeOrId() {
+        String both = LoadCoalescer.normalize(GOOGLE, FACEBOOK);
+        put(GOOGLE, "a@example.com", GOOGLE);
+        put(FACEBOOK, "b@example.com", FACEBOOK);
+        put(both, "b@example.com", FACEBOOK);
+        put("other", "c@example.com", "other");
+
+        mCache.invalidate("c@example.com", FACEBOOK);
+
+        assertNotNull(mCache.get(GOOGLE));
+        assertNull(mCache.get(FACEBOOK));
+        assertNull(mCache.get(both));
+        assertNull(mCache.get("other"));
+    }
+
+    @Test
+    public void passwordCredentialInvalidatesEverything() {
+        put(GOOGLE, "a@example.com", GOOGLE);
+        put("", "b@example.com", null);
+
+        mCache.invalidate("b@example.com", null);
+
+        assertNull(mCache.get(GOOGLE));
+        assertNull(mCache.get(""));
+    }
+
+    @Test
+    public void clearBumpsTheGeneration() {
+        long generation = mCache.generation();
+        mCache.clear();
+        mCache.put(GOOGLE, generation, "user", null, null, GOOGLE, null);
+        assertNull(mCache.get(GOOGLE));
+    }
+
+    @Test
+    public void entriesExpireAfterTheTtl() throws InterruptedException {
+        mCache.configure(20, 16);
+        put(GOOGLE, "user@example.com", GOOGLE);
+        assertNotNull(mCache.get(GOOGLE));
+        Thread.sleep(40);
+        assertNull(mCache.get(GOOGLE));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() {
+        mCache.configure(60 * 1000, 2);
+        put("a", "a", "a");
+        put("b", "b", "b");
+        mCache.get("a");
+        put("c", "c", "c");
+
+        assertNotNull(mCache.get("a"));
+        assertNull(mCache.get("b"));
+        assertNotNull(mCache.get("c"));
+    }
+
+    @Test
+    public void configuringAZeroTtlDisablesAndClears() {
+        put(GOOGLE, "user@example.com", GOOGLE);
+        mCache.configure(0, 16);
+        assertFalse(mCache.isEnabled());
+        mCache.configure(60 * 1000, 16);
+        assertNull(mCache.get(GOOGLE));
+    }
+
+    private void put(String key, String id, String accountType) {
+        mCache.put(key, mCache.generation(), id, "password", "name", accountType, null);
+    }
+}
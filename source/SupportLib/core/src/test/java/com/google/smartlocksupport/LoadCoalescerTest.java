@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smartlocksupport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LoadCoalescerTest {
+
+    private static final String GOOGLE = "https://accounts.google.com";
+    private static final String FACEBOOK = "https://www.facebook.com";
+
+    @Test
+    public void normalizeIgnoresOrderDuplicatesAndNulls() {
+        assertEquals("", LoadCoalescer.normalize());
+        assertEquals("", LoadCoalescer.normalize((String[]) null));
+        assertEquals(LoadCoalescer.normalize(GOOGLE, FACEBOOK),
+                LoadCoalescer.normalize(FACEBOOK, null, GOOGLE, FACEBOOK));
+    }
+
+    @Test
+    public void followersAreCompletedWithTheLeader() {
+        LoadCoalescer coalescer = new LoadCoalescer(60 * 1000);
+        assertEquals(0, coalescer.attach(GOOGLE, 1, 0));
+        assertEquals(1, coalescer.attach(GOOGLE, 2, 0));
+        assertEquals(1, coalescer.attach(GOOGLE, 3, 0));
+        assertEquals(0, coalescer.attach(FACEBOOK, 4, 0));
+
+        LoadCoalescer.Group group = coalescer.finish(1);
+        assertEquals(1, group.mLeaderId);
+        assertArrayEquals(new long[]{2, 3}, group.followers());
+        assertNull(coalescer.finish(1));
+        assertNull(coalescer.finish(2));
+
+        // The next load for the same account types leads a new group.
+        assertEquals(0, coalescer.attach(GOOGLE, 5, 0));
+        assertArrayEquals(new long[0], coalescer.finish(4).followers());
+    }
+
+    @Test
+    public void leaderPastTheMaximumAgeIsReplaced() throws InterruptedException {
+        LoadCoalescer coalescer = new LoadCoalescer(10);
+        assertEquals(0, coalescer.attach(GOOGLE, 1, 0));
+        Thread.sleep(30);
+        assertEquals(0, coalescer.attach(GOOGLE, 2, 0));
+        assertEquals(2, coalescer.attach(GOOGLE, 3, 0));
+
+        assertNull(coalescer.finish(1));
+        assertArrayEquals(new long[]{3}, coalescer.finish(2).followers());
+    }
+
+    @Test
+    public void waitingFollowerIsSeenUntilItCompletes() {
+        ResponseHandlerRegistry registry = new ResponseHandlerRegistry(60 * 1000, null);
+        LoadCoalescer coalescer = new LoadCoalescer(60 * 1000);
+        long leader = registry.register(new Recorder(), SmartLockSupportTraceListener.OP_READ, 0);
+        long follower = registry.register(new Recorder(),
+                SmartLockSupportTraceListener.OP_READ, 0);
+        coalescer.attach(GOOGLE, leader, 0);
+        coalescer.attach(GOOGLE, follower, 0);
+
+        assertTrue(coalescer.hasWaitingFollower(leader, registry));
+        assertFalse(coalescer.hasWaitingFollower(follower, registry));
+
+        registry.remove(follower);
+        assertFalse(coalescer.hasWaitingFollower(leader, registry));
+    }
+
+    @Test
+    public void dispatcherCompletesFollowersWithTheLeaderResult() {
+        OperationDispatcher dispatcher = new OperationDispatcher(60 * 1000, null);
+        PendingBackend backend = new PendingBackend();
+        Recorder[] recorders = new Recorder[3];
+        for (int i = 0; i < recorders.length; i++) {
+            recorders[i] = new Recorder();
+            dispatcher.load(backend, recorders[i], 0, 0, GOOGLE);
+        }
+        assertEquals(1, backend.mLoads.size());
+        long leader = backend.mLoads.get(0);
+        assertTrue(dispatcher.isWaitingForResult(leader));
+
+        dispatcher.deliverResult(leader, StatusCodes.SUCCESS, "user@example.com", "password",
+                null, GOOGLE, null);
+
+        for (Recorder recorder : recorders) {
+            assertEquals(1, recorder.mResults.size());
+            assertArrayEquals(new Object[]{StatusCodes.SUCCESS, "user@example.com", "password",
+                    "", GOOGLE, ""}, recorder.mResults.get(0));
+        }
+        assertFalse(dispatcher.isWaitingForResult(leader));
+    }
+
+    // Records the loads and never answers, so the test completes them.
+    private static final class PendingBackend implements CredentialsBackend {
+        final List<Long> mLoads = new ArrayList<>();
+
+        @Override
+        public void load(long operationId, String... accountTypes) {
+            mLoads.add(operationId);
+        }
+
+        @Override
+        public void prefetch(long operationId, String... accountTypes) {
+            mLoads.add(operationId);
+        }
+
+        @Override
+        public void save(long operationId, String id, String password, String accountType,
+                         String name, String profilePictureURL) {
+        }
+
+        @Override
+        public void delete(long operationId, String id, String password, String accountType) {
+        }
+    }
+
+    private static final class Recorder implements SmartLockSupportResponseHandler {
+        final List<Object[]> mResults = new ArrayList<>();
+
+        @Override
+        public void OnResult(int resultCode, String id, String password, String name,
+                             String accountType, String profilePictureURL) {
+            mResults.add(new Object[]{resultCode, id, password, name, accountType,
+                    profilePictureURL});
+        }
+    }
+}